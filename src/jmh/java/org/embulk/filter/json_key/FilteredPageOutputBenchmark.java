@@ -0,0 +1,150 @@
+package org.embulk.filter.json_key;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
+
+/**
+ * Measures {@link FilteredPageOutput#add(Page)} over pages built with {@link PageTestUtils}.
+ * A score is records per second. Pages are built before each invocation and the output pages are released.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilteredPageOutputBenchmark
+{
+    static final int RECORDS = 1000;
+
+    @Param({"100", "4096"})
+    public int payloadSize;
+
+    @Param({"10"})
+    public int keys;
+
+    @Param({"tree", "streaming"})
+    public String engine;
+
+    private final Schema schema = Schema.builder()
+            .add("id", LONG)
+            .add("name", STRING)
+            .add("score", DOUBLE)
+            .add("flag", BOOLEAN)
+            .add("created_at", TIMESTAMP)
+            .add("payload", STRING)
+            .build();
+
+    private EmbulkTestRuntime runtime;
+    private Object[] values;
+    private PageOutput pageOutput;
+    private List<Page> pages;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        this.runtime = new EmbulkTestRuntime();
+
+        JsonPayloadGenerator generator = new JsonPayloadGenerator(0L);
+        this.values = new Object[RECORDS * schema.getColumnCount()];
+        for (int i = 0; i < RECORDS; i++) {
+            int offset = i * schema.getColumnCount();
+            values[offset] = (long) i;
+            values[offset + 1] = "name" + i;
+            values[offset + 2] = i * 0.5;
+            values[offset + 3] = i % 2 == 0;
+            values[offset + 4] = Timestamp.ofEpochSecond(1445990400L + i);
+            values[offset + 5] = generator.generate(payloadSize, 2);
+        }
+
+        this.pageOutput = Exec.doWith(runtime.getExec(), new ExecAction<PageOutput>()
+        {
+            @Override
+            public PageOutput run()
+            {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("column", "payload")
+                        .set("engine", engine)
+                        .set("add_keys", JsonPayloadGenerator.addKeys(keys, 2))
+                        .set("drop_keys", JsonPayloadGenerator.dropKeys(keys, 2));
+                TaskSource taskSource = config.loadConfig(PluginTask.class).dump();
+                return new JsonKeyFilterPlugin().open(taskSource, schema, schema, new ReleasingPageOutput());
+            }
+        });
+    }
+
+    @Setup(Level.Invocation)
+    public void buildPages()
+    {
+        this.pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public void add()
+    {
+        for (Page page : pages) {
+            pageOutput.add(page);
+        }
+    }
+
+    @TearDown
+    public void tearDown()
+    {
+        pageOutput.finish();
+        pageOutput.close();
+    }
+
+    private static class ReleasingPageOutput
+            implements PageOutput
+    {
+        @Override
+        public void add(Page page)
+        {
+            page.release();
+        }
+
+        @Override
+        public void finish()
+        {
+        }
+
+        @Override
+        public void close()
+        {
+        }
+    }
+}
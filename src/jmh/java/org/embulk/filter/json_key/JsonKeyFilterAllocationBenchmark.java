@@ -0,0 +1,83 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the allocation per record of {@link JsonKeyFilter#doFilter(String)} in the steady state.
+ * Run with {@code ./gradlew jmh -PjmhInclude=JsonKeyFilterAllocationBenchmark} and compare
+ * {@code gc.alloc.rate.norm} (bytes per record) with the size of the output String.
+ * The streaming engine should stay close to it; the tree engine also allocates the tree.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonKeyFilterAllocationBenchmark
+{
+    @Param({"tree", "streaming"})
+    public String engine;
+
+    // drop: drop_keys and add_keys. keep: keep_keys only.
+    @Param({"drop", "keep"})
+    public String rules;
+
+    private JsonKeyFilter filter;
+    private String json;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        final EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+        this.json = new JsonPayloadGenerator(0L).generate(1024, 2);
+        this.filter = Exec.doWith(runtime.getExec(), new ExecAction<JsonKeyFilter>()
+        {
+            @Override
+            public JsonKeyFilter run()
+            {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("column", "payload")
+                        .set("engine", engine);
+                if (rules.equals("keep")) {
+                    config.set("keep_keys", ImmutableList.of(ImmutableMap.of("key", JsonPayloadGenerator.fieldName(0)),
+                                                             ImmutableMap.of("key", JsonPayloadGenerator.levelName(0) + ".*")));
+                }
+                else {
+                    config.set("add_keys", JsonPayloadGenerator.addKeys(10, 2))
+                            .set("drop_keys", JsonPayloadGenerator.dropKeys(10, 2));
+                }
+                PluginTask task = config.loadConfig(PluginTask.class);
+                return new JsonKeyFilter(task, task);
+            }
+        });
+    }
+
+    @Benchmark
+    public String doFilter()
+            throws IOException
+    {
+        return filter.doFilter(json);
+    }
+}
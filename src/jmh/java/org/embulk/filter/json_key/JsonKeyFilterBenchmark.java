@@ -0,0 +1,78 @@
+package org.embulk.filter.json_key;
+
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.ExecAction;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link JsonKeyFilter#doFilter(String)} across payload sizes, nesting depths, rule counts and engines.
+ * Run with {@code ./gradlew jmh -PjmhInclude=JsonKeyFilterBenchmark}; the gc profiler reports the allocation rate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class JsonKeyFilterBenchmark
+{
+    @Param({"100", "4096", "262144"})
+    public int payloadSize;
+
+    @Param({"1", "4"})
+    public int depth;
+
+    @Param({"1", "10", "1000"})
+    public int keys;
+
+    @Param({"tree", "streaming"})
+    public String engine;
+
+    private JsonKeyFilter filter;
+    private String json;
+
+    @Setup
+    public void setup()
+            throws Exception
+    {
+        final EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+        this.json = new JsonPayloadGenerator(0L).generate(payloadSize, depth);
+        this.filter = Exec.doWith(runtime.getExec(), new ExecAction<JsonKeyFilter>()
+        {
+            @Override
+            public JsonKeyFilter run()
+            {
+                ConfigSource config = Exec.newConfigSource()
+                        .set("column", "payload")
+                        .set("engine", engine)
+                        .set("add_keys", JsonPayloadGenerator.addKeys(keys, depth))
+                        .set("drop_keys", JsonPayloadGenerator.dropKeys(keys, depth));
+                PluginTask task = config.loadConfig(PluginTask.class);
+                return new JsonKeyFilter(task, task);
+            }
+        });
+    }
+
+    @Benchmark
+    public String doFilter()
+            throws IOException
+    {
+        return filter.doFilter(json);
+    }
+}
@@ -0,0 +1,154 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Generates deterministic JSON event payloads for benchmarks.
+ *
+ * A payload is an object nested {@code depth} levels deep through the keys n0, n1, ...
+ * Each level holds the fields field0, field1, ... with string, number, boolean and array values,
+ * until the payload reaches about {@code targetSize} characters.
+ * With a key cardinality, each level also holds one key for every four fields, drawn from
+ * key0 to key(cardinality - 1), like the attributes of events which differ from record to record.
+ */
+class JsonPayloadGenerator
+{
+    private static final String ALPHABET = "abcdefghijklmnopqrstuvwxyz0123456789";
+
+    private final Random random;
+
+    JsonPayloadGenerator(long seed)
+    {
+        this.random = new Random(seed);
+    }
+
+    public String generate(int targetSize, int depth)
+    {
+        return generate(targetSize, depth, 2, 0);
+    }
+
+    // arrayWidth is the number of elements of array values. keyCardinality 0 means no varying keys.
+    public String generate(int targetSize, int depth, int arrayWidth, int keyCardinality)
+    {
+        StringBuilder builder = new StringBuilder(targetSize + 64);
+        int fieldsPerLevel = 1;
+        // grow the number of fields until the payload becomes large enough.
+        while (true) {
+            builder.setLength(0);
+            writeLevel(builder, 0, depth, fieldsPerLevel, arrayWidth, keyCardinality);
+            if (builder.length() >= targetSize) {
+                return builder.toString();
+            }
+            fieldsPerLevel = Math.max(fieldsPerLevel + 1, fieldsPerLevel * targetSize / builder.length());
+        }
+    }
+
+    private void writeLevel(StringBuilder builder, int level, int depth, int fields, int arrayWidth, int keyCardinality)
+    {
+        builder.append('{');
+        for (int i = 0; i < fields; i++) {
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append('"').append(fieldName(i)).append("\":");
+            writeScalar(builder, i, arrayWidth);
+        }
+        if (keyCardinality > 0) {
+            // consecutive keys from a random start, so that no key is repeated in the level.
+            int keys = Math.min(Math.max(fields / 4, 1), keyCardinality);
+            int start = random.nextInt(keyCardinality);
+            for (int i = 0; i < keys; i++) {
+                builder.append(",\"").append(varyingKeyName((start + i) % keyCardinality)).append("\":");
+                writeScalar(builder, i, arrayWidth);
+            }
+        }
+        if (level + 1 < depth) {
+            builder.append(",\"").append(levelName(level)).append("\":");
+            writeLevel(builder, level + 1, depth, fields, arrayWidth, keyCardinality);
+        }
+        builder.append('}');
+    }
+
+    private void writeScalar(StringBuilder builder, int i, int arrayWidth)
+    {
+        switch (i % 4) {
+            case 0:
+                builder.append('"');
+                for (int j = 0; j < 24; j++) {
+                    builder.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+                }
+                builder.append('"');
+                break;
+            case 1:
+                builder.append(random.nextInt(1000000));
+                break;
+            case 2:
+                builder.append(random.nextBoolean());
+                break;
+            default:
+                builder.append('[');
+                for (int j = 0; j < arrayWidth; j++) {
+                    if (j > 0) {
+                        builder.append(',');
+                    }
+                    builder.append(random.nextInt(100));
+                }
+                builder.append(']');
+                break;
+        }
+    }
+
+    static String fieldName(int i)
+    {
+        return "field" + i;
+    }
+
+    static String varyingKeyName(int i)
+    {
+        return "key" + i;
+    }
+
+    static String levelName(int level)
+    {
+        return "n" + level;
+    }
+
+    /**
+     * Returns {@code count} key configs, spread over the levels of a payload of the given depth.
+     * Every tenth key is an add_keys entry, the others are drop_keys entries.
+     */
+    static List<Object> dropKeys(int count, int depth)
+    {
+        ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 != 9) {
+                builder.add(ImmutableMap.of("key", path(i, depth)));
+            }
+        }
+        return builder.build();
+    }
+
+    static List<Object> addKeys(int count, int depth)
+    {
+        ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        for (int i = 0; i < count; i++) {
+            if (i % 10 == 9) {
+                builder.add(ImmutableMap.of("key", path(i, depth) + "_added", "value", "added"));
+            }
+        }
+        return builder.build();
+    }
+
+    private static String path(int i, int depth)
+    {
+        StringBuilder builder = new StringBuilder();
+        for (int level = 0; level < i % depth; level++) {
+            builder.append(levelName(level)).append('.');
+        }
+        return builder.append(fieldName(i)).toString();
+    }
+}
@@ -0,0 +1,305 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.primitives.Doubles;
+import com.google.common.primitives.Longs;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.EpochUnit;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.ExtractColumnConfig;
+import org.embulk.filter.json_key.KeyPathMatcher.State;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+import org.joda.time.format.DateTimeFormatter;
+import org.joda.time.format.ISODateTimeFormat;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.Value;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Holds the values of extract_columns found while a record is filtered, and converts them into
+ * the types of their columns.
+ *
+ * Values which cannot be converted become null: booleans from true/false or "true"/"false",
+ * numbers from numbers or numeric strings, timestamps from epoch numbers or ISO 8601 strings,
+ * strings from strings or the JSON text of other values.
+ *
+ * The values of rename_keys are taken the same way, by the indexes after the extract_columns,
+ * and held as the input JsonNode or Value until the engine writes them at their new keys.
+ */
+class ColumnExtractor
+{
+    private static final DateTimeFormatter ISO_PARSER = ISODateTimeFormat.dateTimeParser().withZoneUTC();
+
+    private final List<ExtractColumnConfig> configs;
+    // copied from the configs, whose getters are not cheap.
+    private final Type[] types;
+    private final EpochUnit[] epochUnits;
+    private final Value[] values;
+    // values of rename_keys, as JsonNode or Value. null if not found.
+    private final Object[] moved;
+
+    ColumnExtractor(List<ExtractColumnConfig> configs, int renameCount)
+    {
+        this.configs = configs;
+        this.types = new Type[configs.size()];
+        this.epochUnits = new EpochUnit[configs.size()];
+        for (int i = 0; i < types.length; i++) {
+            types[i] = configs.get(i).getType();
+            epochUnits[i] = configs.get(i).getEpochUnit();
+        }
+        this.values = new Value[configs.size()];
+        this.moved = new Object[renameCount];
+    }
+
+    public List<ExtractColumnConfig> getConfigs()
+    {
+        return configs;
+    }
+
+    public int size()
+    {
+        return values.length;
+    }
+
+    // indexes of the extract_columns in the output schema.
+    public int[] lookupColumnIndexes(Schema outputSchema)
+    {
+        int[] indexes = new int[configs.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = outputSchema.lookupColumn(configs.get(i).getName()).getIndex();
+        }
+        return indexes;
+    }
+
+    // called before each record.
+    public void clear()
+    {
+        Arrays.fill(values, null);
+        Arrays.fill(moved, null);
+    }
+
+    // the input value of rename_keys at the index, or null if the record has none.
+    public Object getMoved(int index)
+    {
+        return moved[index];
+    }
+
+    // stores the value for the extract_columns at the indexes. a later value of the same column wins.
+    // the node is converted once, before the engine edits it.
+    private void set(int[] indexes, JsonNode node)
+    {
+        Value value = null;
+        for (int index : indexes) {
+            if (index < values.length) {
+                if (value == null) {
+                    value = JsonValues.fromJsonNode(node);
+                }
+                values[index] = value;
+            }
+            else {
+                // a moved value is always dropped from its old key, so it is not edited.
+                moved[index - values.length] = node;
+            }
+        }
+    }
+
+    private void set(int[] indexes, Value value)
+    {
+        for (int index : indexes) {
+            if (index < values.length) {
+                values[index] = value;
+            }
+            else {
+                moved[index - values.length] = value;
+            }
+        }
+    }
+
+    // takes the values for extract_columns from the input value of the state, before the value is edited.
+    // if the value is dropped or replaced, the descendants to extract are taken here too.
+    public void extract(State state, JsonNode node)
+    {
+        if (state.hasExtracts()) {
+            set(state.getExtractIndexes(), node);
+        }
+        if ((state.isDropped() || state.isAdded()) && state.hasExtractsBelow()) {
+            extractBelow(state, node);
+        }
+    }
+
+    public void extract(State state, Value value)
+    {
+        if (state.hasExtracts()) {
+            set(state.getExtractIndexes(), value);
+        }
+        if ((state.isDropped() || state.isAdded()) && state.hasExtractsBelow()) {
+            extractBelow(state, value);
+        }
+    }
+
+    private void extractBelow(State state, JsonNode node)
+    {
+        if (node.isObject()) {
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                extractChild(state.getChild(field.getKey()), field.getValue());
+            }
+        }
+        else if (node.isArray()) {
+            for (int index = 0; index < node.size(); index++) {
+                extractChild(state.getChild(index), node.get(index));
+            }
+        }
+    }
+
+    private void extractChild(State child, JsonNode node)
+    {
+        if (child == null) {
+            return;
+        }
+        if (child.hasExtracts()) {
+            set(child.getExtractIndexes(), node);
+        }
+        if (child.hasExtractsBelow()) {
+            extractBelow(child, node);
+        }
+    }
+
+    private void extractBelow(State state, Value value)
+    {
+        if (value.isMapValue()) {
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                if (entry.getKey().isStringValue()) {
+                    extractChild(state.getChild(entry.getKey().asStringValue().asString()), entry.getValue());
+                }
+            }
+        }
+        else if (value.isArrayValue()) {
+            ArrayValue array = value.asArrayValue();
+            for (int index = 0; index < array.size(); index++) {
+                extractChild(state.getChild(index), array.get(index));
+            }
+        }
+    }
+
+    private void extractChild(State child, Value value)
+    {
+        if (child == null) {
+            return;
+        }
+        if (child.hasExtracts()) {
+            set(child.getExtractIndexes(), value);
+        }
+        if (child.hasExtractsBelow()) {
+            extractBelow(child, value);
+        }
+    }
+
+    // the value of the index converted into the type of its column: Boolean, Long, Double, String, Timestamp, Value or null.
+    public Object get(int index)
+    {
+        Value value = values[index];
+        if (value == null || value.isNilValue()) {
+            return null;
+        }
+
+        Type type = types[index];
+        if (type instanceof BooleanType) {
+            return toBoolean(value);
+        }
+        else if (type instanceof LongType) {
+            return toLong(value);
+        }
+        else if (type instanceof DoubleType) {
+            return toDouble(value);
+        }
+        else if (type instanceof StringType) {
+            return value.isStringValue() ? value.asStringValue().asString() : value.toJson();
+        }
+        else if (type instanceof TimestampType) {
+            return toTimestamp(value, epochUnits[index]);
+        }
+        else if (type instanceof JsonType) {
+            return value;
+        }
+        return null;
+    }
+
+    private static Boolean toBoolean(Value value)
+    {
+        if (value.isBooleanValue()) {
+            return value.asBooleanValue().getBoolean();
+        }
+        else if (value.isStringValue()) {
+            String string = value.asStringValue().asString();
+            if (string.equals("true")) {
+                return true;
+            }
+            else if (string.equals("false")) {
+                return false;
+            }
+        }
+        return null;
+    }
+
+    private static Long toLong(Value value)
+    {
+        if (value.isIntegerValue()) {
+            return value.asIntegerValue().isInLongRange() ? value.asIntegerValue().toLong() : null;
+        }
+        else if (value.isFloatValue()) {
+            return (long) value.asFloatValue().toDouble();
+        }
+        else if (value.isStringValue()) {
+            return Longs.tryParse(value.asStringValue().asString());
+        }
+        return null;
+    }
+
+    private static Double toDouble(Value value)
+    {
+        if (value.isNumberValue()) {
+            return value.asNumberValue().toDouble();
+        }
+        else if (value.isStringValue()) {
+            return Doubles.tryParse(value.asStringValue().asString());
+        }
+        return null;
+    }
+
+    private static Timestamp toTimestamp(Value value, EpochUnit unit)
+    {
+        if (value.isIntegerValue() && value.asIntegerValue().isInLongRange()) {
+            long epoch = value.asIntegerValue().toLong();
+            return unit == EpochUnit.MILLISECOND ? Timestamp.ofEpochMilli(epoch) : Timestamp.ofEpochSecond(epoch);
+        }
+        else if (value.isFloatValue()) {
+            double seconds = value.asFloatValue().toDouble();
+            if (unit == EpochUnit.MILLISECOND) {
+                seconds /= 1000;
+            }
+            long epochSecond = (long) Math.floor(seconds);
+            return Timestamp.ofEpochSecond(epochSecond, (long) ((seconds - epochSecond) * 1000000000L));
+        }
+        else if (value.isStringValue()) {
+            try {
+                return Timestamp.ofEpochMilli(ISO_PARSER.parseMillis(value.asStringValue().asString()));
+            }
+            catch (IllegalArgumentException e) {
+                return null;
+            }
+        }
+        return null;
+    }
+}
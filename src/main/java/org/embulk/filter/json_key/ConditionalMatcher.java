@@ -0,0 +1,304 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.google.common.base.Splitter;
+import com.google.common.primitives.Ints;
+import org.embulk.config.ConfigException;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyFilterConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.WhenConfig;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Picks the {@link KeyPathMatcher} for a record from the {@code when} predicates of its keys.
+ *
+ * The predicates are compiled once. For each record they are evaluated into a bit set of those which hold,
+ * and the matcher of the rules enabled by the bit set is compiled when it is not cached.
+ * Up to {@link #MAX_CACHED_MATCHERS} matchers are kept in LRU order besides the one of all rules, so records
+ * with many combinations of predicates cannot keep one automaton for each of them.
+ * Keys without {@code when} are in every matcher.
+ */
+class ConditionalMatcher
+{
+    // bits of a long.
+    private static final int MAX_PREDICATES = 64;
+    private static final int MAX_CACHED_MATCHERS = 16;
+
+    private final KeyFilterConfig keyFilterConfig;
+    private final String delimiter;
+    private final ObjectMapper mapper;
+    private final Predicate[] predicates;
+    // the predicate of each rule, numbered as in KeyPathMatcher#compile. -1 for rules without when.
+    private final int[] rulePredicates;
+    // by the bit set of the predicates which hold, in LRU order.
+    private final Map<Long, KeyPathMatcher> matchers = new LinkedHashMap<Long, KeyPathMatcher>(16, 0.75f, true)
+    {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, KeyPathMatcher> eldest)
+        {
+            return size() > MAX_CACHED_MATCHERS;
+        }
+    };
+    private final KeyPathMatcher allRulesMatcher;
+    private final int maxPathLength;
+
+    // scratch of scan(). the path of the current token, as deep as the longest path of the predicates:
+    // whether each container is an array, and the key name or the array index in it.
+    private final boolean[] arrays;
+    private final String[] names;
+    private final int[] indexes;
+
+    private static class Predicate
+    {
+        private final List<String> segments;
+        // -1 for segments which are not array indexes.
+        private final int[] segmentIndexes;
+        // null for exists.
+        private final Set<Value> values;
+        private final boolean exists;
+
+        private Predicate(List<String> segments, Set<Value> values, boolean exists)
+        {
+            this.segments = segments;
+            this.segmentIndexes = new int[segments.size()];
+            for (int i = 0; i < segmentIndexes.length; i++) {
+                Integer index = Ints.tryParse(segments.get(i));
+                segmentIndexes[i] = index == null ? -1 : index;
+            }
+            this.values = values;
+            this.exists = exists;
+        }
+
+        // value is null if there is nothing at the path, and the scalar found there otherwise. containers never equal.
+        private boolean test(boolean found, Value value)
+        {
+            if (values == null) {
+                return found == exists;
+            }
+            return found && value != null && values.contains(value);
+        }
+    }
+
+    ConditionalMatcher(KeyFilterConfig keyFilterConfig, String delimiter, ObjectMapper mapper)
+    {
+        this.keyFilterConfig = keyFilterConfig;
+        this.delimiter = delimiter;
+        this.mapper = mapper;
+
+        List<KeyConfig> rules = new ArrayList<>();
+        rules.addAll(keyFilterConfig.getAddKeyConfigs());
+        rules.addAll(keyFilterConfig.getDropKeyConfigs());
+        rules.addAll(keyFilterConfig.getKeepKeyConfigs());
+        List<Predicate> predicates = new ArrayList<>();
+        this.rulePredicates = new int[rules.size()];
+        int maxPathLength = 0;
+        for (int i = 0; i < rules.size(); i++) {
+            if (!rules.get(i).getWhen().isPresent()) {
+                rulePredicates[i] = -1;
+                continue;
+            }
+            Predicate predicate = newPredicate(rules.get(i).getWhen().get());
+            rulePredicates[i] = predicates.size();
+            predicates.add(predicate);
+            maxPathLength = Math.max(maxPathLength, predicate.segments.size());
+        }
+        if (predicates.size() > MAX_PREDICATES) {
+            throw new ConfigException(String.format("Too many keys with when. The limit is %d", MAX_PREDICATES));
+        }
+        this.predicates = predicates.toArray(new Predicate[predicates.size()]);
+        this.maxPathLength = maxPathLength;
+        this.arrays = new boolean[maxPathLength];
+        this.names = new String[maxPathLength];
+        this.indexes = new int[maxPathLength];
+        this.allRulesMatcher = KeyPathMatcher.compile(keyFilterConfig, delimiter, mapper);
+    }
+
+    private Predicate newPredicate(WhenConfig when)
+    {
+        List<String> segments = Splitter.on(delimiter).splitToList(when.getPath());
+        if (segments.contains(KeyPathMatcher.ANY_SEGMENT) || segments.contains(KeyPathMatcher.ANY_SEGMENTS)) {
+            throw new ConfigException(String.format("The path of when cannot have wildcards: %s", when.getPath()));
+        }
+        int set = (when.getEquals().isPresent() ? 1 : 0) + (when.getIn().isPresent() ? 1 : 0) + (when.getExists().isPresent() ? 1 : 0);
+        if (set != 1) {
+            throw new ConfigException(String.format("when of '%s' must have exactly one of equals, in and exists", when.getPath()));
+        }
+
+        if (when.getExists().isPresent()) {
+            return new Predicate(segments, null, when.getExists().get());
+        }
+        List<Object> expected = when.getEquals().isPresent() ? Arrays.asList(when.getEquals().get()) : when.getIn().get();
+        Set<Value> values = new HashSet<>();
+        for (Object value : expected) {
+            values.add(JsonValues.fromJsonNode(mapper.valueToTree(value)));
+        }
+        return new Predicate(segments, values, false);
+    }
+
+    public boolean hasPredicates()
+    {
+        return predicates.length > 0;
+    }
+
+    // matchers kept besides the one of all rules.
+    int getCachedMatchers()
+    {
+        return matchers.size();
+    }
+
+    // the matcher of all rules, as if every predicate held.
+    public KeyPathMatcher getAllRulesMatcher()
+    {
+        return allRulesMatcher;
+    }
+
+    public KeyPathMatcher select(JsonNode root)
+    {
+        if (predicates.length == 0) {
+            return allRulesMatcher;
+        }
+        long holds = 0;
+        for (int i = 0; i < predicates.length; i++) {
+            JsonNode node = root;
+            for (int j = 0; node != null && j < predicates[i].segments.size(); j++) {
+                node = node.isArray() ? node.get(predicates[i].segmentIndexes[j]) : node.get(predicates[i].segments.get(j));
+            }
+            if (predicates[i].test(node != null, node != null && node.isValueNode() ? JsonValues.fromJsonNode(node) : null)) {
+                holds |= 1L << i;
+            }
+        }
+        return getMatcher(holds);
+    }
+
+    public KeyPathMatcher select(Value root)
+    {
+        if (predicates.length == 0) {
+            return allRulesMatcher;
+        }
+        long holds = 0;
+        for (int i = 0; i < predicates.length; i++) {
+            Value value = JsonValues.get(root, predicates[i].segments);
+            boolean scalar = value != null && !value.isMapValue() && !value.isArrayValue();
+            if (predicates[i].test(value != null, scalar ? value : null)) {
+                holds |= 1L << i;
+            }
+        }
+        return getMatcher(holds);
+    }
+
+    // reads tokens from the parser into the buffer only until every predicate is decided, and returns the matcher.
+    // the parser must be on the first token of the value, and is left on the last token copied.
+    // so the buffer followed by the rest of the parser is the whole value.
+    // a predicate is decided when its path is found, or when the object, array or scalar which would hold it ends.
+    public KeyPathMatcher scan(JsonParser parser, TokenBuffer buffer)
+            throws IOException
+    {
+        long holds = 0;
+        long decided = 0;
+        long all = allHold();
+        int depth = 0;
+        JsonToken token = parser.getCurrentToken();
+        while (token != null) {
+            buffer.copyCurrentEvent(parser);
+            if (token == JsonToken.FIELD_NAME) {
+                if (depth <= maxPathLength) {
+                    names[depth - 1] = parser.getCurrentName();
+                }
+            }
+            else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                depth--;
+                // the paths below the closed container which are not found by now are absent.
+                for (int i = 0; i < predicates.length; i++) {
+                    if ((decided & (1L << i)) == 0 && predicates[i].segments.size() > depth && pathMatches(predicates[i], depth)) {
+                        decided |= 1L << i;
+                        if (predicates[i].test(false, null)) {
+                            holds |= 1L << i;
+                        }
+                    }
+                }
+            }
+            else {
+                if (depth > 0 && depth <= maxPathLength && arrays[depth - 1]) {
+                    indexes[depth - 1]++;
+                }
+                boolean container = token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY;
+                for (int i = 0; i < predicates.length; i++) {
+                    if ((decided & (1L << i)) == 0 && predicates[i].segments.size() >= depth && pathMatches(predicates[i], depth)) {
+                        boolean found = predicates[i].segments.size() == depth;
+                        if (!found && container) {
+                            // may be below this container.
+                            continue;
+                        }
+                        // found, or absent as nothing is below a scalar.
+                        decided |= 1L << i;
+                        if (predicates[i].test(found, found && !container ? JsonValues.fromParser(parser) : null)) {
+                            holds |= 1L << i;
+                        }
+                    }
+                }
+                if (container) {
+                    if (depth < maxPathLength) {
+                        arrays[depth] = token == JsonToken.START_ARRAY;
+                        indexes[depth] = -1;
+                    }
+                    depth++;
+                }
+            }
+            // the value ends at depth 0, and every predicate is decided by then.
+            if (decided == all || depth == 0) {
+                break;
+            }
+            token = parser.nextToken();
+        }
+        return getMatcher(holds);
+    }
+
+    // whether the first length segments of the predicate are the path of the current token.
+    private boolean pathMatches(Predicate predicate, int length)
+    {
+        for (int i = 0; i < length; i++) {
+            if (arrays[i] ? predicate.segmentIndexes[i] != indexes[i] : !predicate.segments.get(i).equals(names[i])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private KeyPathMatcher getMatcher(long holds)
+    {
+        if (holds == allHold()) {
+            return allRulesMatcher;
+        }
+        KeyPathMatcher matcher = matchers.get(holds);
+        if (matcher == null) {
+            BitSet disabledRules = new BitSet();
+            for (int rule = 0; rule < rulePredicates.length; rule++) {
+                if (rulePredicates[rule] >= 0 && (holds & (1L << rulePredicates[rule])) == 0) {
+                    disabledRules.set(rule);
+                }
+            }
+            matcher = KeyPathMatcher.compile(keyFilterConfig, delimiter, mapper, disabledRules);
+            matchers.put(holds, matcher);
+        }
+        return matcher;
+    }
+
+    private long allHold()
+    {
+        return predicates.length == MAX_PREDICATES ? -1L : (1L << predicates.length) - 1;
+    }
+}
@@ -0,0 +1,32 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonProcessingException;
+
+/**
+ * Thrown when a JSON document is over one of the limits of the task. It is a JsonProcessingException so that it
+ * stops Jackson while the document is being read, before the rest of it is parsed or built into a tree.
+ */
+class DocumentLimitException
+        extends JsonProcessingException
+{
+    public enum Limit
+    {
+        CHARS,
+        DEPTH,
+        NODES
+    }
+
+    private final Limit limit;
+
+    DocumentLimitException(Limit limit, String message, JsonLocation location)
+    {
+        super(message, location);
+        this.limit = limit;
+    }
+
+    public Limit getLimit()
+    {
+        return limit;
+    }
+}
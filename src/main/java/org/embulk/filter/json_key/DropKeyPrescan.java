@@ -0,0 +1,137 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.primitives.Ints;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A cheap scan of the JSON text which proves that none of drop_keys can apply to a record,
+ * so the record can be passed through without being parsed.
+ *
+ * Each dropped path has a needle: its longest segment which is not an array index nor a wildcard. A path can only
+ * match a document which has its needle as a string literal, so the string literals of the text are
+ * compared with the needles in one pass. Literals with escapes are not decoded; they are treated as
+ * a possible match if they are long enough.
+ */
+class DropKeyPrescan
+{
+    private final String[] needles;
+    // String.hashCode of the needles, in ascending order. needles[i] has the hash hashes[i].
+    private final int[] hashes;
+    private final int minLength;
+    private final int maxLength;
+
+    private DropKeyPrescan(List<String> needles)
+    {
+        Collections.sort(needles, new Comparator<String>()
+        {
+            @Override
+            public int compare(String a, String b)
+            {
+                return Integer.compare(a.hashCode(), b.hashCode());
+            }
+        });
+        this.needles = needles.toArray(new String[needles.size()]);
+        this.hashes = new int[this.needles.length];
+        int minLength = Integer.MAX_VALUE;
+        int maxLength = 0;
+        for (int i = 0; i < this.needles.length; i++) {
+            hashes[i] = this.needles[i].hashCode();
+            minLength = Math.min(minLength, this.needles[i].length());
+            maxLength = Math.max(maxLength, this.needles[i].length());
+        }
+        this.minLength = minLength;
+        this.maxLength = maxLength;
+    }
+
+    // null if the matcher adds or keeps keys, or extracts values which a skipped parse would miss, or if a dropped path has no key name to look for.
+    static DropKeyPrescan create(KeyPathMatcher matcher)
+    {
+        if (matcher.hasAddedKeys() || matcher.hasKeptKeys() || matcher.hasExtractedPaths()) {
+            return null;
+        }
+
+        List<String> needles = new ArrayList<>();
+        for (List<String> segments : matcher.getDroppedPaths()) {
+            String needle = null;
+            for (String segment : segments) {
+                if (segment.equals(KeyPathMatcher.ANY_SEGMENT) || segment.equals(KeyPathMatcher.ANY_SEGMENTS)
+                        || Ints.tryParse(segment) != null) {
+                    continue;
+                }
+                if (needle == null || segment.length() > needle.length()) {
+                    needle = segment;
+                }
+            }
+            if (needle == null) {
+                return null;
+            }
+            if (!needles.contains(needle)) {
+                needles.add(needle);
+            }
+        }
+        return new DropKeyPrescan(needles);
+    }
+
+    // false only if no drop_keys can apply to the JSON text.
+    public boolean mayApply(String json)
+    {
+        if (needles.length == 0) {
+            return false;
+        }
+
+        int length = json.length();
+        int i = json.indexOf('"');
+        while (i >= 0 && i < length) {
+            int start = ++i;
+            int hash = 0;
+            boolean escaped = false;
+            char c = 0;
+            while (i < length && (c = json.charAt(i)) != '"') {
+                if (c == '\\') {
+                    escaped = true;
+                    i++;
+                }
+                hash = 31 * hash + c;
+                i++;
+            }
+            if (i >= length) {
+                // unterminated literal. the filter will report it.
+                return true;
+            }
+
+            int literalLength = i - start;
+            if (escaped) {
+                if (literalLength >= minLength) {
+                    return true;
+                }
+            }
+            else if (literalLength >= minLength && literalLength <= maxLength && matches(json, start, literalLength, hash)) {
+                return true;
+            }
+            i = json.indexOf('"', i + 1);
+        }
+        return false;
+    }
+
+    private boolean matches(String json, int start, int literalLength, int hash)
+    {
+        int found = Arrays.binarySearch(hashes, hash);
+        if (found < 0) {
+            return false;
+        }
+        while (found > 0 && hashes[found - 1] == hash) {
+            found--;
+        }
+        for (int i = found; i < hashes.length && hashes[i] == hash; i++) {
+            if (needles[i].length() == literalLength && json.regionMatches(start, needles[i], 0, literalLength)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,96 @@
+package org.embulk.filter.json_key;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Counters of the work done by this filter.
+ *
+ * Each JsonKeyFilter owns an instance that is updated by a single thread. FilteredPageOutput merges them
+ * into the metrics of the task at finish(), and the tasks of a transaction are merged again in
+ * {@link JsonKeyFilterPlugin#transaction}. Embulk filter plugins have no task report,
+ * so the transaction only sees the tasks which ran in the same JVM (e.g. the local executor).
+ */
+class FilterMetrics
+{
+    private static final ConcurrentMap<String, FilterMetrics> transactions = new ConcurrentHashMap<>();
+
+    long records = 0;
+    long values = 0;
+    long passedThrough = 0;
+    // chars of JSON text read from string columns and written into string columns. msgpack values of json columns
+    // and of output_type json are not counted, as measuring them would serialize each of them.
+    long inputChars = 0;
+    long outputChars = 0;
+    long parseNanos = 0;
+    long transformNanos = 0;
+    long serializeNanos = 0;
+    long addedKeys = 0;
+    long droppedKeys = 0;
+    long movedKeys = 0;
+    long parseFailures = 0;
+    long overCharsLimit = 0;
+    long overDepthLimit = 0;
+    long overNodesLimit = 0;
+
+    public void merge(FilterMetrics other)
+    {
+        records += other.records;
+        values += other.values;
+        passedThrough += other.passedThrough;
+        inputChars += other.inputChars;
+        outputChars += other.outputChars;
+        parseNanos += other.parseNanos;
+        transformNanos += other.transformNanos;
+        serializeNanos += other.serializeNanos;
+        addedKeys += other.addedKeys;
+        droppedKeys += other.droppedKeys;
+        movedKeys += other.movedKeys;
+        parseFailures += other.parseFailures;
+        overCharsLimit += other.overCharsLimit;
+        overDepthLimit += other.overDepthLimit;
+        overNodesLimit += other.overNodesLimit;
+    }
+
+    @Override
+    public String toString()
+    {
+        return String.format(Locale.ENGLISH,
+                             "%d records, %d values (%d passed through), %d chars in, %d chars out, " +
+                                     "parse %.3f s, transform %.3f s, serialize %.3f s, " +
+                                     "%d keys added, %d keys dropped, %d keys moved, %d parse failures, " +
+                                     "over limits: %d chars, %d depth, %d nodes",
+                             records, values, passedThrough, inputChars, outputChars,
+                             parseNanos / 1e9, transformNanos / 1e9, serializeNanos / 1e9,
+                             addedKeys, droppedKeys, movedKeys, parseFailures,
+                             overCharsLimit, overDepthLimit, overNodesLimit);
+    }
+
+    static void beginTransaction(String transactionId)
+    {
+        transactions.put(transactionId, new FilterMetrics());
+    }
+
+    // merges the metrics of a task into its transaction, if the transaction runs in this JVM.
+    static void mergeIntoTransaction(String transactionId, FilterMetrics metrics)
+    {
+        FilterMetrics total = transactions.get(transactionId);
+        if (total != null) {
+            synchronized (total) {
+                total.merge(metrics);
+            }
+        }
+    }
+
+    static FilterMetrics endTransaction(String transactionId)
+    {
+        FilterMetrics total = transactions.remove(transactionId);
+        if (total == null) {
+            return new FilterMetrics();
+        }
+        synchronized (total) {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.embulk.filter.json_key;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded LRU cache from an input JSON text to its filtered result (a String or a msgpack Value).
+ *
+ * Keys are the input Strings themselves, so a hit is always exact. The size of an entry is estimated
+ * from the lengths of the input and the result, and entries are evicted in LRU order when either
+ * the number of entries or the estimated bytes exceed the limits.
+ */
+class FilterResultCache
+{
+    // rough size of a LinkedHashMap entry and the String headers.
+    private static final long ENTRY_OVERHEAD_BYTES = 96;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<String, Entry> entries;
+    private long bytes = 0;
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    private static class Entry
+    {
+        private final Object result;
+        private final long bytes;
+
+        private Entry(Object result, long bytes)
+        {
+            this.result = result;
+            this.bytes = bytes;
+        }
+    }
+
+    FilterResultCache(int maxEntries, long maxBytes)
+    {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    // returns the cached result, or null.
+    public Object get(String input)
+    {
+        Entry entry = entries.get(input);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.result;
+    }
+
+    // resultLength is the number of chars of the result, or an estimate for msgpack values.
+    public void put(String input, Object result, int resultLength)
+    {
+        long entryBytes = ENTRY_OVERHEAD_BYTES + 2L * (input.length() + resultLength);
+        if (entryBytes > maxBytes) {
+            return;
+        }
+
+        Entry previous = entries.put(input, new Entry(result, entryBytes));
+        if (previous != null) {
+            bytes -= previous.bytes;
+        }
+        bytes += entryBytes;
+
+        Iterator<Map.Entry<String, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxEntries || bytes > maxBytes) {
+            bytes -= eldest.next().getValue().bytes;
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    public long getHits()
+    {
+        return hits;
+    }
+
+    public long getMisses()
+    {
+        return misses;
+    }
+
+    public long getEvictions()
+    {
+        return evictions;
+    }
+
+    public int size()
+    {
+        return entries.size();
+    }
+
+    public long getBytes()
+    {
+        return bytes;
+    }
+}
@@ -1,5 +1,7 @@
 package org.embulk.filter.json_key;
 
+import com.google.common.base.Optional;
+import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
 import org.embulk.spi.Page;
 import org.embulk.spi.PageBuilder;
@@ -8,6 +10,10 @@ import org.embulk.spi.PageReader;
 import org.embulk.spi.Schema;
 import org.slf4j.Logger;
 
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
 import static org.embulk.filter.json_key.JsonKeyFilterPlugin.*;
 
 /**
@@ -21,7 +27,17 @@ class FilteredPageOutput
     private final PageBuilder pageBuilder;
     private final PageOutput pageOutput;
     private final Schema outputSchema;
-    private final ColumnVisitorImpl columnVisitor;
+    private final RecordCopyPlan recordCopyPlan;
+    private final ParallelRecordFilter parallelRecordFilter;
+    // null unless batch is enabled with parallelism 1.
+    private final PageBatchFilter pageBatchFilter;
+    // [0] is used by the task thread, and the others by workers of ParallelRecordFilter.
+    private final JsonKeyFilter[][] filters;
+    private final Optional<String> transactionId;
+    private final long progressLogIntervalNanos;
+    private final long startNanos;
+    private long nextProgressLogNanos;
+    private long records = 0;
 
     public FilteredPageOutput(PluginTask task, Schema inputSchema, Schema outputSchema, PageOutput pageOutput)
     {
@@ -29,7 +45,39 @@ class FilteredPageOutput
         this.pageBuilder = new PageBuilder(Exec.getBufferAllocator(), outputSchema, pageOutput);
         this.pageOutput = pageOutput;
         this.outputSchema = outputSchema;
-        this.columnVisitor = new ColumnVisitorImpl(pageReader, pageBuilder, new JsonKeyFilter(task), task.getColumnName());
+        if (task.getParallelism() > 1) {
+            this.filters = new JsonKeyFilter[task.getParallelism()][];
+            for (int i = 0; i < filters.length; i++) {
+                filters[i] = newJsonKeyFilters(task, inputSchema);
+            }
+            this.parallelRecordFilter = new ParallelRecordFilter(pageReader, pageBuilder, outputSchema, filters);
+        }
+        else {
+            this.filters = new JsonKeyFilter[][] {newJsonKeyFilters(task, inputSchema)};
+            this.parallelRecordFilter = null;
+        }
+        this.recordCopyPlan = new RecordCopyPlan(pageReader, pageBuilder, outputSchema, filters[0]);
+        if (task.getBatch() && parallelRecordFilter == null) {
+            this.pageBatchFilter = new PageBatchFilter(pageReader, pageBuilder, outputSchema, filters[0]);
+        }
+        else {
+            this.pageBatchFilter = null;
+        }
+        this.transactionId = task.getTransactionId();
+        this.progressLogIntervalNanos = TimeUnit.SECONDS.toNanos(task.getProgressLogInterval());
+        this.startNanos = System.nanoTime();
+        this.nextProgressLogNanos = startNanos + progressLogIntervalNanos;
+    }
+
+    // JsonKeyFilter for each filtered column, indexed by the column index. null for the other columns.
+    private static JsonKeyFilter[] newJsonKeyFilters(PluginTask task, Schema inputSchema)
+    {
+        JsonKeyFilter[] filters = new JsonKeyFilter[inputSchema.getColumnCount()];
+        for (Map.Entry<String, KeyFilterConfig> entry : getKeyFilterConfigs(task).entrySet()) {
+            Column column = inputSchema.lookupColumn(entry.getKey());
+            filters[column.getIndex()] = new JsonKeyFilter(task, entry.getValue());
+        }
+        return filters;
     }
 
     @Override
@@ -37,22 +85,116 @@ class FilteredPageOutput
     {
         pageReader.setPage(page);
 
-        while (pageReader.nextRecord()) {
-            outputSchema.visitColumns(columnVisitor);
-            pageBuilder.addRecord();
+        if (parallelRecordFilter != null) {
+            while (pageReader.nextRecord()) {
+                parallelRecordFilter.addRecord();
+                records++;
+            }
+        }
+        else if (pageBatchFilter != null) {
+            records += pageBatchFilter.filterPage();
+        }
+        else {
+            while (pageReader.nextRecord()) {
+                recordCopyPlan.copyRecord();
+                records++;
+            }
+        }
+
+        if (progressLogIntervalNanos > 0) {
+            long now = System.nanoTime();
+            if (now >= nextProgressLogNanos) {
+                logger.info(String.format(Locale.ENGLISH, "Filtered %d records, %.1f records/sec",
+                                          records, records / ((now - startNanos) / 1e9)));
+                nextProgressLogNanos = now + progressLogIntervalNanos;
+            }
         }
     }
 
     @Override
     public void finish()
     {
+        if (parallelRecordFilter != null) {
+            parallelRecordFilter.flush();
+        }
         pageBuilder.finish();
         pageOutput.finish();
+        logCacheStatistics();
+        reportMetrics();
+        reportProfiles();
+    }
+
+    private void reportMetrics()
+    {
+        FilterMetrics metrics = new FilterMetrics();
+        metrics.records = records;
+        for (JsonKeyFilter[] workerFilters : filters) {
+            for (JsonKeyFilter filter : workerFilters) {
+                if (filter != null) {
+                    metrics.merge(filter.getMetrics());
+                }
+            }
+        }
+        logger.info(String.format("Metrics of this task: %s", metrics));
+        if (transactionId.isPresent()) {
+            FilterMetrics.mergeIntoTransaction(transactionId.get(), metrics);
+        }
+    }
+
+    private void reportProfiles()
+    {
+        for (Column column : pageReader.getSchema().getColumns()) {
+            KeyProfile profile = null;
+            for (JsonKeyFilter[] workerFilters : filters) {
+                JsonKeyFilter filter = workerFilters[column.getIndex()];
+                if (filter != null && filter.getProfile() != null) {
+                    if (profile == null) {
+                        profile = filter.getProfile();
+                    }
+                    else {
+                        profile.merge(filter.getProfile());
+                    }
+                }
+            }
+            if (profile != null) {
+                profile.log(logger, String.format("Profile of column '%s' of this task", column.getName()));
+                if (transactionId.isPresent()) {
+                    KeyProfile.mergeIntoTransaction(transactionId.get(), column.getName(), profile);
+                }
+            }
+        }
+    }
+
+    private void logCacheStatistics()
+    {
+        // extract_columns have no filters, so only the input columns are looked at.
+        for (Column column : pageReader.getSchema().getColumns()) {
+            long hits = 0;
+            long misses = 0;
+            long evictions = 0;
+            boolean enabled = false;
+            for (JsonKeyFilter[] workerFilters : filters) {
+                JsonKeyFilter filter = workerFilters[column.getIndex()];
+                if (filter != null && filter.getCache() != null) {
+                    enabled = true;
+                    hits += filter.getCache().getHits();
+                    misses += filter.getCache().getMisses();
+                    evictions += filter.getCache().getEvictions();
+                }
+            }
+            if (enabled) {
+                logger.info(String.format("Result cache of column '%s': %d hits, %d misses, %d evictions",
+                                          column.getName(), hits, misses, evictions));
+            }
+        }
     }
 
     @Override
     public void close()
     {
+        if (parallelRecordFilter != null) {
+            parallelRecordFilter.close();
+        }
         pageReader.close();
         pageBuilder.close();
         pageOutput.close();
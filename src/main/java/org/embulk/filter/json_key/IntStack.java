@@ -0,0 +1,48 @@
+package org.embulk.filter.json_key;
+
+import java.util.Arrays;
+
+/**
+ * Scratch ints for recursive visits, reused across values so that a frame costs no allocation.
+ * A frame is pushed when a visit starts and popped when it ends, so nested visits use the space
+ * after their parent.
+ */
+class IntStack
+{
+    private int[] values = new int[64];
+    private int top = 0;
+
+    // returns the offset of a new frame of the size, filled with 0.
+    public int push(int size)
+    {
+        int base = top;
+        if (base + size > values.length) {
+            values = Arrays.copyOf(values, Math.max(base + size, values.length * 2));
+        }
+        Arrays.fill(values, base, base + size, 0);
+        top = base + size;
+        return base;
+    }
+
+    // frees the frame at the offset and all frames pushed after it.
+    public void pop(int base)
+    {
+        top = base;
+    }
+
+    // frees all frames, e.g. frames left by a visit which has thrown.
+    public void clear()
+    {
+        top = 0;
+    }
+
+    public int get(int index)
+    {
+        return values[index];
+    }
+
+    public void set(int index, int value)
+    {
+        values[index] = value;
+    }
+}
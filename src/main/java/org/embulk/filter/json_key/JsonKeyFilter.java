@@ -1,258 +1,610 @@
 package org.embulk.filter.json_key;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
-import com.fasterxml.jackson.databind.node.ArrayNode;
-import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Splitter;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Lists;
-import org.apache.commons.lang3.math.NumberUtils;
+import com.google.common.io.BaseEncoding;
+import com.google.common.primitives.Ints;
+import org.embulk.filter.json_key.DocumentLimitException.Limit;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyFilterConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.LimitPolicy;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.OutputFormat;
 import org.embulk.filter.json_key.JsonKeyFilterPlugin.PluginTask;
 import org.embulk.spi.Exec;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.Type;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.slf4j.Logger;
 
 import java.io.IOException;
 import java.util.List;
 
-import static org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyConfig;
+import static org.embulk.filter.json_key.JsonKeyFilterPlugin.FilterEngine;
 
 /**
  * Created by takahiro.nakayama on 10/28/15.
  */
 class JsonKeyFilter
 {
+    private static final int INITIAL_BUFFER_SIZE = 4096;
+
+    // receives the elements of explode_path, each to be written as a record.
+    interface ExplodedOutput
+    {
+        // output is a String or a msgpack Value for the type of the output column, or null.
+        void add(Object output);
+    }
+
     private final Logger logger = Exec.getLogger(JsonKeyFilter.class);
     private final ObjectMapper mapper = new ObjectMapper();
+    private final JsonFactory factory = mapper.getFactory();
+
+    private final FilterEngine engine;
+    private final TreeKeyFilter treeKeyFilter;
+    private final StreamingKeyFilter streamingKeyFilter;
+    private final ValueKeyFilter valueKeyFilter;
+    private final FilterResultCache cache;
+    private final DropKeyPrescan prescan;
+    private final FilterMetrics metrics = new FilterMetrics();
+    // null unless profile is set.
+    private final KeyProfile profile;
+    private final String delimiter;
+    private final ColumnExtractor extractor;
+    // limits of JSON text. 0 means no limit.
+    private final long maxDocumentChars;
+    private final int maxDepth;
+    private final long maxNodes;
+    private final LimitPolicy limitPolicy;
+    // segments of explode_path. null if not set, and empty for the document itself.
+    private final List<String> explodePath;
 
-    private final AddKeyFilter addKeyFilter;
-    private final DropKeyFilter dropKeyFilter;
+    // Embulk hands string columns over as String, so JSON is parsed from the chars of the String
+    // and written into a reused buffer. The result String is the only copy made per record.
+    private char[] inputBuffer = new char[INITIAL_BUFFER_SIZE];
+    private final ReusableStringWriter outputBuffer = new ReusableStringWriter(INITIAL_BUFFER_SIZE);
+    // writes the results of all records one after another into outputBuffer. null until first used.
+    private JsonGenerator generator;
+    // for output_format smile and cbor. null for json.
+    private final JsonFactory binaryFactory;
+    private final ReusableByteArrayOutputStream binaryBuffer;
+
+    JsonKeyFilter(PluginTask task, KeyFilterConfig keyFilterConfig)
+    {
+        ConditionalMatcher matcher = new ConditionalMatcher(keyFilterConfig, task.getNestedKeyDelimiter(), mapper);
+        // the streaming engine cannot go back to an object already written, to put a value moved into it.
+        if (task.getEngine() == FilterEngine.STREAMING && !matcher.getAllRulesMatcher().hasOnlyUpwardMoves()) {
+            logger.info("rename_keys moves a key into an object which does not enclose it. The tree engine is used instead of streaming.");
+            this.engine = FilterEngine.TREE;
+        }
+        else {
+            this.engine = task.getEngine();
+        }
+        this.extractor = new ColumnExtractor(keyFilterConfig.getExtractColumnConfigs(), keyFilterConfig.getRenameKeyConfigs().size());
+        KeyCaseConverter keyCase = keyFilterConfig.getKeyCase().isPresent() ? new KeyCaseConverter(keyFilterConfig.getKeyCase().get()) : null;
+        this.treeKeyFilter = new TreeKeyFilter(mapper, matcher, metrics, extractor, keyCase);
+        this.streamingKeyFilter = new StreamingKeyFilter(mapper, matcher, metrics, extractor, keyCase);
+        this.valueKeyFilter = new ValueKeyFilter(matcher, metrics, extractor, keyCase);
+        if (keyFilterConfig.getExplodePath().isPresent()) {
+            String path = keyFilterConfig.getExplodePath().get();
+            this.explodePath = path.isEmpty() ? ImmutableList.<String>of() : Splitter.on(task.getNestedKeyDelimiter()).splitToList(path);
+        }
+        else {
+            this.explodePath = null;
+        }
+        this.profile = task.getProfile() ? new KeyProfile(task.getProfileTopN()) : null;
+        this.delimiter = task.getNestedKeyDelimiter();
+        // a record passed through is neither validated nor reformatted, so the prescan is only used when asked for.
+        // it would also be JSON text in a column of binary documents, or not be exploded,
+        // or keep keys not converted for key_case, or not be profiled, or not be checked for max_depth and max_nodes.
+        // add_keys, keep_keys, extract_columns and rename_keys are checked by DropKeyPrescan#create.
+        // drop_keys with when are taken as if they always applied, which can only make the prescan parse more.
+        if (task.getPassThroughUnmatched() && keyFilterConfig.getOutputFormat() == OutputFormat.JSON && explodePath == null && keyCase == null && profile == null
+                && task.getMaxDepth() == 0 && task.getMaxNodes() == 0) {
+            this.prescan = DropKeyPrescan.create(matcher.getAllRulesMatcher());
+        }
+        else {
+            this.prescan = null;
+        }
+        this.binaryFactory = newBinaryFactory(keyFilterConfig.getOutputFormat(), mapper);
+        this.binaryBuffer = binaryFactory == null ? null : new ReusableByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+        this.maxDocumentChars = task.getMaxDocumentChars();
+        this.maxDepth = task.getMaxDepth();
+        this.maxNodes = task.getMaxNodes();
+        this.limitPolicy = task.getLimitPolicy();
+        // a cached result has no extracted values nor exploded records, and a cached record is not profiled.
+        if (task.getCacheEntries() > 0 && extractor.size() == 0 && explodePath == null && profile == null) {
+            this.cache = new FilterResultCache(task.getCacheEntries(), task.getCacheMaxBytes());
+        }
+        else {
+            this.cache = null;
+        }
+    }
 
-    JsonKeyFilter(PluginTask task)
+    // null if the cache is disabled.
+    public FilterResultCache getCache()
     {
-        this.addKeyFilter = new AddKeyFilter(task.getAddKeyConfigs(), task.getNestedKeyDelimiter());
-        this.dropKeyFilter = new DropKeyFilter(task.getDropKeyConfigs(), task.getNestedKeyDelimiter());
+        return cache;
     }
 
-    public String doFilter(String json)
-            throws IOException
+    // updated by the thread which calls doFilter.
+    public FilterMetrics getMetrics()
+    {
+        return metrics;
+    }
+
+    // null unless profile is set. updated by the thread which calls doFilter.
+    public KeyProfile getProfile()
     {
-        JsonNode rootNode = mapper.readTree(json);
-        JsonNode filteredNode = addKeyFilter.doFilter(rootNode);
-        filteredNode = dropKeyFilter.doFilter(filteredNode);
+        return profile;
+    }
+
+    // the values for extract_columns taken by the last doFilter, or of the last element given to ExplodedOutput.
+    public ColumnExtractor getExtractor()
+    {
+        return extractor;
+    }
 
-        return mapper.writeValueAsString(filteredNode);
+    public boolean isExploding()
+    {
+        return explodePath != null;
     }
 
-    private abstract class AbstractKeyFilter
+    public String doFilter(String json)
+            throws IOException
     {
-        private final Logger logger = Exec.getLogger(AbstractKeyFilter.class);
-        private final List<ImmutableList<String>> keys;
-        private final List<JsonNode> values;
-
-        private List<ImmutableList<String>> newKeys(List<KeyConfig> keyConfigs, String delimiter)
-        {
-            ImmutableList.Builder<ImmutableList<String>> builder = ImmutableList.builder();
-            for (KeyConfig keyConfig : keyConfigs) {
-                builder.add(ImmutableList.copyOf(Lists.newArrayList(Splitter.on(delimiter).split(keyConfig.getKey()))));
+        extractor.clear();
+        if (json == null) {
+            return null;
+        }
+        metrics.values++;
+        metrics.inputChars += json.length();
+        if (maxDocumentChars > 0 && json.length() > maxDocumentChars) {
+            if (passesOverLimit(newCharsLimitException())) {
+                metrics.outputChars += json.length();
+                return json;
+            }
+            return null;
+        }
+        // a record which no drop_keys can apply to is returned as is, without being parsed.
+        if (prescan != null && !prescan.mayApply(json)) {
+            metrics.passedThrough++;
+            metrics.outputChars += json.length();
+            return json;
+        }
+        if (cache != null) {
+            String cached = (String) cache.get(json);
+            if (cached != null) {
+                metrics.outputChars += cached.length();
+                return cached;
             }
-            return builder.build();
         }
 
-        private List<JsonNode> newValues(List<KeyConfig> keyConfigs)
-        {
-            ImmutableList.Builder<JsonNode> builder = ImmutableList.builder();
-            for (KeyConfig keyConfig : keyConfigs) {
-                JsonNode value = mapper.getNodeFactory().nullNode();
-                if (keyConfig.getValue().isPresent()) {
-                    value = mapper.getNodeFactory().pojoNode(keyConfig.getValue().get());
-                }
-                builder.add(value);
+        String output;
+        try (JsonParser parser = newParser(json)) {
+            output = filterToText(parser);
+        }
+        catch (DocumentLimitException e) {
+            this.generator = null;
+            if (passesOverLimit(e)) {
+                metrics.outputChars += json.length();
+                return json;
+            }
+            return null;
+        }
+        catch (IOException e) {
+            // the generator may have been left in the middle of a value.
+            this.generator = null;
+            if (e instanceof JsonProcessingException) {
+                metrics.parseFailures++;
             }
-            return builder.build();
+            throw e;
         }
+        metrics.outputChars += output.length();
 
-        AbstractKeyFilter(List<KeyConfig> keyConfigs, String nestedKeyDelimiter)
-        {
-            this.keys = newKeys(keyConfigs, nestedKeyDelimiter);
-            this.values = newValues(keyConfigs);
+        if (cache != null) {
+            cache.put(json, output, output.length());
         }
+        return output;
+    }
 
-        public abstract JsonNode doFilter(JsonNode rootNode);
+    // filters the value at the current token of the parser, or the first value if there is no current token.
+    private String filterToText(JsonParser parser)
+            throws IOException
+    {
+        if (binaryFactory != null) {
+            // a Smile document starts with a header, so each record has its own generator.
+            binaryBuffer.reset();
+            try (JsonGenerator binaryGenerator = binaryFactory.createGenerator(binaryBuffer)) {
+                filter(parser, binaryGenerator);
+            }
+            return encodeBinary();
+        }
+        outputBuffer.reset();
+        JsonGenerator generator = getGenerator();
+        filter(parser, generator);
+        generator.flush();
+        return outputBuffer.toString();
     }
 
-    private class AddKeyFilter
-            extends AbstractKeyFilter
+    private void filter(JsonParser parser, JsonGenerator generator)
+            throws IOException
     {
-        AddKeyFilter(List<KeyConfig> keyConfigs, String nestedKeyDelimiter)
-        {
-            super(keyConfigs, nestedKeyDelimiter);
+        if (engine == FilterEngine.STREAMING) {
+            streamingKeyFilter.doFilter(parser, generator);
+        }
+        else {
+            treeKeyFilter.doFilter(parser, generator);
         }
+    }
 
-        @Override
-        public JsonNode doFilter(JsonNode rootNode)
-        {
-            JsonNode filteredJsonNode = rootNode;
-            for (int i = 0; i < super.keys.size(); i++) {
-                filteredJsonNode = addKey(rootNode, super.keys.get(i), super.values.get(i));
+    // for output_type: json. JSON text is parsed once and the result is built as a msgpack value.
+    public Value doFilterAsValue(String json)
+            throws IOException
+    {
+        extractor.clear();
+        if (json == null) {
+            return null;
+        }
+        metrics.values++;
+        metrics.inputChars += json.length();
+        if (maxDocumentChars > 0 && json.length() > maxDocumentChars) {
+            return passesOverLimit(newCharsLimitException()) ? ValueFactory.newString(json) : null;
+        }
+        if (cache != null) {
+            Value cached = (Value) cache.get(json);
+            if (cached != null) {
+                return cached;
             }
-            return filteredJsonNode;
         }
 
-        // TODO: addKey is overwriting existing values.
-        private JsonNode addKey(JsonNode node, List<String> nestedKey, JsonNode value)
-        {
-            if (node == null) {
-                return null;
-            }
+        Value output;
+        try (JsonParser parser = newParser(json)) {
+            output = filterToValue(parser);
+        }
+        catch (DocumentLimitException e) {
+            // the text is passed through as a JSON string, as it is not parsed.
+            return passesOverLimit(e) ? ValueFactory.newString(json) : null;
+        }
+        catch (JsonProcessingException e) {
+            metrics.parseFailures++;
+            throw e;
+        }
+
+        // msgpack values are immutable, so they can be shared. the input length approximates the size.
+        if (cache != null) {
+            cache.put(json, output, json.length());
+        }
+        return output;
+    }
+
+    // for explode_path: each element of the array at the path is filtered as doFilter(Object, Type) does and
+    // given to output, as soon as it is read. output gets null once if the value is null or has no array at the path.
+    // if a limit is hit in the middle of the array, the rest of it is not written. then the record is written once more
+    // as limit_policy says, as the original text for pass_through or null for null, as records without an array are.
+    public void doExplode(Object value, Type outputType, ExplodedOutput output)
+            throws IOException
+    {
+        extractor.clear();
+        if (value == null) {
+            output.add(null);
+            return;
+        }
+        metrics.values++;
 
-            if (node.isObject()) {
-                return addKeyToObject(node, nestedKey, value);
+        if (value instanceof Value) {
+            if (profile != null) {
+                profile.addPaths((Value) value, delimiter);
             }
-            else if (node.isArray()) {
-                return addKeyToArray(node, nestedKey, value);
+            Value array = JsonValues.get((Value) value, explodePath);
+            if (array == null || !array.isArrayValue()) {
+                output.add(null);
+                return;
             }
-            // TODO: if NullNode, need to create nodes?
-            // else if (node.isNull()) {
-            //     return addKeyToNull(node, nestedKey, value);
-            // }
-            else {
-                return node;
+            for (Value element : array.asArrayValue()) {
+                extractor.clear();
+                Value filtered = valueKeyFilter.doFilter(element);
+                if (outputType instanceof JsonType) {
+                    output.add(filtered);
+                }
+                else {
+                    String text = toText(filtered);
+                    metrics.outputChars += text.length();
+                    output.add(text);
+                }
             }
+            return;
         }
 
-        private JsonNode addKeyToObject(JsonNode node, List<String> nestedKey, JsonNode value)
-        {
-            ObjectNode object = (ObjectNode) node;
-            if (nestedKey.isEmpty()) {
-                return object;
-            }
-            else if (nestedKey.size() == 1) {
-                object.set(nestedKey.get(0), value);
-                return object;
+        String json = (String) value;
+        metrics.inputChars += json.length();
+        if (maxDocumentChars > 0 && json.length() > maxDocumentChars) {
+            if (passesOverLimit(newCharsLimitException())) {
+                addOriginal(json, outputType, output);
             }
             else {
-                String parentKey = nestedKey.get(0);
-                List<String> newNestedKey = nestedKey.subList(1, nestedKey.size());
-                JsonNode newNode = addKey(object.get(parentKey), newNestedKey, value);
-                if (newNode != null) {
-                    object.set(parentKey, newNode);
-                }
-                return object;
+                output.add(null);
             }
+            return;
         }
-
-        // TODO: addKeyToArray cannot add not existing index.
-        private JsonNode addKeyToArray(JsonNode node, List<String> nestedKey, JsonNode value)
-        {
-            ArrayNode object = (ArrayNode) node;
-            if (nestedKey.isEmpty()) {
-                return object;
+        try (JsonParser parser = newParser(json)) {
+            if (!moveTo(parser, explodePath) || parser.getCurrentToken() != JsonToken.START_ARRAY) {
+                output.add(null);
+                return;
             }
-            else if (nestedKey.size() == 1) {
-                String key = nestedKey.get(0);
-                if (NumberUtils.isNumber(key)) {
-                    object.set(Integer.parseInt(key), value);
+            while (parser.nextToken() != JsonToken.END_ARRAY) {
+                extractor.clear();
+                if (outputType instanceof JsonType) {
+                    output.add(filterToValue(parser));
+                }
+                else {
+                    String filtered = filterToText(parser);
+                    metrics.outputChars += filtered.length();
+                    output.add(filtered);
                 }
-                return object;
+            }
+        }
+        catch (DocumentLimitException e) {
+            this.generator = null;
+            if (passesOverLimit(e)) {
+                addOriginal(json, outputType, output);
             }
             else {
-                String parentIdx = nestedKey.get(0);
-                List<String> newNestedKey = nestedKey.subList(1, nestedKey.size());
-                if (NumberUtils.isNumber(parentIdx)) {
-                    int idx = Integer.parseInt(parentIdx);
-                    JsonNode newNode = addKey(object.get(idx), newNestedKey, value);
-                    if (newNode != null) {
-                        object.set(idx, newNode);
-                    }
-                }
-                return object;
+                output.add(null);
+            }
+        }
+        catch (IOException e) {
+            this.generator = null;
+            if (e instanceof JsonProcessingException) {
+                metrics.parseFailures++;
             }
+            throw e;
         }
     }
 
-    private class DropKeyFilter
-            extends AbstractKeyFilter
+    // for a record over a limit with pass_through.
+    private void addOriginal(String json, Type outputType, ExplodedOutput output)
     {
-        DropKeyFilter(List<KeyConfig> keyConfigs, String nestedKeyDelimiter)
-        {
-            super(keyConfigs, nestedKeyDelimiter);
+        if (outputType instanceof JsonType) {
+            output.add(ValueFactory.newString(json));
         }
-
-        @Override
-        public JsonNode doFilter(JsonNode rootNode)
-        {
-            JsonNode filteredJsonNode = rootNode;
-            for (List<String> nestedKey : super.keys) {
-                filteredJsonNode = dropKey(rootNode, nestedKey);
-            }
-            return filteredJsonNode;
+        else {
+            metrics.outputChars += json.length();
+            output.add(json);
         }
+    }
 
-        // if NullNode has come before end of a nested key, return NullNode not EmptyObjectNode.
-        private JsonNode dropKey(JsonNode node, List<String> nestedKey)
-        {
-            if (node == null) {
-                return null;
-            }
-
-            if (node.isObject()) {
-                return dropKeyFromObject(node, nestedKey);
+    // moves the parser onto the value at the path. false if there is no such value.
+    private static boolean moveTo(JsonParser parser, List<String> path)
+            throws IOException
+    {
+        if (parser.nextToken() == null) {
+            return false;
+        }
+        for (String segment : path) {
+            JsonToken token = parser.getCurrentToken();
+            if (token == JsonToken.START_OBJECT) {
+                boolean found = false;
+                while (!found && parser.nextToken() == JsonToken.FIELD_NAME) {
+                    found = parser.getCurrentName().equals(segment);
+                    parser.nextToken();
+                    if (!found) {
+                        parser.skipChildren();
+                    }
+                }
+                if (!found) {
+                    return false;
+                }
             }
-            else if (node.isArray()) {
-                return dropKeyFromArray(node, nestedKey);
+            else if (token == JsonToken.START_ARRAY) {
+                Integer index = Ints.tryParse(segment);
+                if (index == null) {
+                    return false;
+                }
+                for (int i = 0; ; i++) {
+                    if (parser.nextToken() == JsonToken.END_ARRAY) {
+                        return false;
+                    }
+                    if (i == index) {
+                        break;
+                    }
+                    parser.skipChildren();
+                }
             }
             else {
-                return node;
+                return false;
             }
         }
+        return true;
+    }
 
-        private JsonNode dropKeyFromObject(JsonNode node, List<String> nestedKey)
-        {
-            ObjectNode object = (ObjectNode) node;
-            if (nestedKey.isEmpty()) {
-                return object;
-            }
-            else if (nestedKey.size() == 1) {
-                object.remove(nestedKey.get(0));
-                return object;
-            }
-            else {
-                String parentKey = nestedKey.get(0);
-                List<String> newNestedKey = nestedKey.subList(1, nestedKey.size());
-                JsonNode newNode = dropKey(object.get(parentKey), newNestedKey);
-                if (newNode != null) {
-                    object.set(parentKey, newNode);
-                }
-                return object;
+    // filters the value at the current token of the parser, or the first value if there is no current token.
+    private Value filterToValue(JsonParser parser)
+            throws IOException
+    {
+        if (engine == FilterEngine.STREAMING) {
+            TokenBuffer tokens = new TokenBuffer(mapper, false);
+            streamingKeyFilter.doFilter(parser, tokens);
+            try (JsonParser tokenParser = tokens.asParser()) {
+                tokenParser.nextToken();
+                return JsonValues.fromParser(tokenParser);
             }
         }
+        JsonNode node = treeKeyFilter.doFilter(parser);
+        long start = System.nanoTime();
+        Value output = JsonValues.fromJsonNode(node);
+        metrics.serializeNanos += System.nanoTime() - start;
+        return output;
+    }
 
-        private JsonNode dropKeyFromArray(JsonNode node, List<String> nestedKey)
-        {
-            ArrayNode object = (ArrayNode) node;
-            if (nestedKey.isEmpty()) {
-                return object;
-            }
-            else if (nestedKey.size() == 1) {
-                String key = nestedKey.get(0);
-                if (NumberUtils.isNumber(key)) {
-                    object.remove(Integer.parseInt(key));
-                }
-                return object;
-            }
-            else {
-                String parentIdx = nestedKey.get(0);
-                List<String> newNestedKey = nestedKey.subList(1, nestedKey.size());
-                if (NumberUtils.isNumber(parentIdx)) {
-                    int idx = Integer.parseInt(parentIdx);
-                    JsonNode newNode = dropKey(object.get(idx), newNestedKey);
-                    if (newNode != null) {
-                        object.set(idx, newNode);
-                    }
-                }
-                return object;
+    // json columns are edited as msgpack values regardless of the engine.
+    public Value doFilter(Value json)
+    {
+        extractor.clear();
+        if (json == null) {
+            return null;
+        }
+        metrics.values++;
+        if (profile != null) {
+            profile.addPaths(json, delimiter);
+        }
+        return valueKeyFilter.doFilter(json);
+    }
+
+    // for a json column written into a string column: JSON text, or base64 of the output_format.
+    public String doFilterAsString(Value json)
+            throws IOException
+    {
+        String output = toText(doFilter(json));
+        if (output != null) {
+            metrics.outputChars += output.length();
+        }
+        return output;
+    }
+
+    private String toText(Value output)
+            throws IOException
+    {
+        if (output == null) {
+            return null;
+        }
+        if (binaryFactory == null) {
+            return output.toJson();
+        }
+
+        long start = System.nanoTime();
+        binaryBuffer.reset();
+        try (JsonGenerator binaryGenerator = binaryFactory.createGenerator(binaryBuffer)) {
+            JsonValues.writeValue(binaryGenerator, output);
+        }
+        String encoded = encodeBinary();
+        metrics.serializeNanos += System.nanoTime() - start;
+        return encoded;
+    }
+
+    // value is a String or a msgpack Value read from the input column.
+    // returns a String or a msgpack Value for the type of the output column.
+    public Object doFilter(Object value, Type outputType)
+            throws IOException
+    {
+        if (value == null) {
+            extractor.clear();
+            return null;
+        }
+
+        if (value instanceof Value) {
+            return outputType instanceof JsonType ? doFilter((Value) value) : doFilterAsString((Value) value);
+        }
+        else if (outputType instanceof JsonType) {
+            return doFilterAsValue((String) value);
+        }
+        else {
+            return doFilter((String) value);
+        }
+    }
+
+    // filters values[0] to values[count - 1] in place, each as doFilter(Object, Type) does.
+    // the values for extract_columns j of values[i] are set to extractedValues[j][i].
+    public void doFilterBatch(Object[] values, int count, Type outputType, Object[][] extractedValues)
+            throws IOException
+    {
+        for (int i = 0; i < count; i++) {
+            values[i] = doFilter(values[i], outputType);
+            for (int j = 0; j < extractedValues.length; j++) {
+                extractedValues[j][i] = extractor.get(j);
             }
         }
     }
+
+    // counts the limit, and returns true if the input is to be passed through as is, false if it is to be null.
+    private boolean passesOverLimit(DocumentLimitException e)
+            throws DocumentLimitException
+    {
+        switch (e.getLimit()) {
+            case CHARS:
+                metrics.overCharsLimit++;
+                break;
+            case DEPTH:
+                metrics.overDepthLimit++;
+                break;
+            case NODES:
+                metrics.overNodesLimit++;
+                break;
+        }
+        // values extracted before the limit are of a part of the document.
+        extractor.clear();
+        if (limitPolicy == LimitPolicy.FAIL) {
+            throw e;
+        }
+        return limitPolicy == LimitPolicy.PASS_THROUGH;
+    }
+
+    private DocumentLimitException newCharsLimitException()
+    {
+        return new DocumentLimitException(Limit.CHARS, String.format("JSON has more chars than max_document_chars %d", maxDocumentChars),
+                                          JsonLocation.NA);
+    }
+
+    private String encodeBinary()
+    {
+        return BaseEncoding.base64().encode(binaryBuffer.getBuffer(), 0, binaryBuffer.size());
+    }
+
+    // the codec is needed by the engines to write add_keys values as trees.
+    private static JsonFactory newBinaryFactory(OutputFormat outputFormat, ObjectMapper mapper)
+    {
+        JsonFactory binaryFactory;
+        switch (outputFormat) {
+            case SMILE:
+                binaryFactory = new SmileFactory();
+                break;
+            case CBOR:
+                binaryFactory = new CBORFactory();
+                break;
+            default:
+                return null;
+        }
+        binaryFactory.setCodec(mapper);
+        return binaryFactory;
+    }
+
+    // Jackson parsers cannot be pointed at new input, so only the generator is reused across records.
+    private JsonGenerator getGenerator()
+            throws IOException
+    {
+        if (generator == null) {
+            generator = factory.createGenerator(outputBuffer);
+            // results are taken one by one, so no separator is written between root values.
+            generator.setRootValueSeparator(null);
+        }
+        return generator;
+    }
+
+    private JsonParser newParser(String json)
+            throws IOException
+    {
+        int length = json.length();
+        if (length > inputBuffer.length) {
+            inputBuffer = new char[Math.max(length, inputBuffer.length * 2)];
+        }
+        json.getChars(0, length, inputBuffer, 0);
+        JsonParser parser = factory.createParser(inputBuffer, 0, length);
+        if (profile != null) {
+            parser = new ProfilingJsonParser(parser, profile, delimiter);
+        }
+        if (maxDepth > 0 || maxNodes > 0) {
+            return new LimitedJsonParser(parser, maxDepth, maxNodes);
+        }
+        return parser;
+    }
 }
@@ -1,18 +1,33 @@
 package org.embulk.filter.json_key;
 
+import com.fasterxml.jackson.annotation.JsonCreator;
+import com.fasterxml.jackson.annotation.JsonValue;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.base.Optional;
 import org.embulk.config.Config;
 import org.embulk.config.ConfigDefault;
+import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigSource;
 import org.embulk.config.Task;
 import org.embulk.config.TaskSource;
+import org.embulk.spi.Column;
 import org.embulk.spi.Exec;
 import org.embulk.spi.FilterPlugin;
 import org.embulk.spi.PageOutput;
 import org.embulk.spi.Schema;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.Type;
+import org.embulk.spi.type.Types;
 import org.slf4j.Logger;
 
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
 
 public class JsonKeyFilterPlugin
         implements FilterPlugin
@@ -26,17 +41,252 @@ public class JsonKeyFilterPlugin
         @Config("value")
         @ConfigDefault("null")
         public Optional<Object> getValue();
+
+        // the key is added, dropped or kept only in records where this holds.
+        @Config("when")
+        @ConfigDefault("null")
+        public Optional<WhenConfig> getWhen();
     }
 
-    public interface PluginTask
+    // a predicate on the value at a path. exactly one of equals, in and exists is set.
+    public interface WhenConfig
             extends Task
     {
-        @Config("column")
-        public String getColumnName();
+        @Config("path")
+        public String getPath();
 
-        @Config("nested_key_delimiter")
-        @ConfigDefault("\".\"")
-        public String getNestedKeyDelimiter();
+        @Config("equals")
+        @ConfigDefault("null")
+        public Optional<Object> getEquals();
+
+        @Config("in")
+        @ConfigDefault("null")
+        public Optional<List<Object>> getIn();
+
+        @Config("exists")
+        @ConfigDefault("null")
+        public Optional<Boolean> getExists();
+    }
+
+    // a value moved from one key to another, possibly at another nesting level.
+    public interface RenameKeyConfig
+            extends Task
+    {
+        @Config("from")
+        public String getFrom();
+
+        @Config("to")
+        public String getTo();
+    }
+
+    // a value of a JSON column to be written into a new column.
+    public interface ExtractColumnConfig
+            extends Task
+    {
+        @Config("path")
+        public String getPath();
+
+        @Config("name")
+        public String getName();
+
+        @Config("type")
+        public Type getType();
+
+        // unit of numbers extracted into a timestamp column.
+        @Config("epoch_unit")
+        @ConfigDefault("\"second\"")
+        public EpochUnit getEpochUnit();
+    }
+
+    public enum EpochUnit
+    {
+        SECOND,
+        MILLISECOND;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static EpochUnit fromString(String value)
+        {
+            switch (value) {
+                case "second":
+                    return SECOND;
+                case "millisecond":
+                    return MILLISECOND;
+                default:
+                    throw new ConfigException(String.format("Unknown epoch_unit '%s'. Supported units are second, millisecond", value));
+            }
+        }
+    }
+
+    public enum FilterEngine
+    {
+        TREE,
+        STREAMING;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static FilterEngine fromString(String value)
+        {
+            switch (value) {
+                case "tree":
+                    return TREE;
+                case "streaming":
+                    return STREAMING;
+                default:
+                    throw new ConfigException(String.format("Unknown engine '%s'. Supported engines are tree, streaming", value));
+            }
+        }
+    }
+
+    // what to do with a JSON document over one of the limits.
+    public enum LimitPolicy
+    {
+        PASS_THROUGH,
+        NULL,
+        FAIL;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static LimitPolicy fromString(String value)
+        {
+            switch (value) {
+                case "pass_through":
+                    return PASS_THROUGH;
+                case "null":
+                    return NULL;
+                case "fail":
+                    return FAIL;
+                default:
+                    throw new ConfigException(String.format("Unknown limit_policy '%s'. Supported policies are pass_through, null, fail", value));
+            }
+        }
+    }
+
+    public enum OutputType
+    {
+        STRING(Types.STRING),
+        JSON(Types.JSON);
+
+        private final Type type;
+
+        OutputType(Type type)
+        {
+            this.type = type;
+        }
+
+        public Type getType()
+        {
+            return type;
+        }
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static OutputType fromString(String value)
+        {
+            switch (value) {
+                case "string":
+                    return STRING;
+                case "json":
+                    return JSON;
+                default:
+                    throw new ConfigException(String.format("Unknown output_type '%s'. Supported output types are string, json", value));
+            }
+        }
+    }
+
+    // naming convention which all keys of the filtered JSON are converted into.
+    public enum KeyCase
+    {
+        SNAKE_CASE,
+        LOWERCASE;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static KeyCase fromString(String value)
+        {
+            switch (value) {
+                case "snake_case":
+                    return SNAKE_CASE;
+                case "lowercase":
+                    return LOWERCASE;
+                default:
+                    throw new ConfigException(String.format("Unknown key_case '%s'. Supported cases are snake_case, lowercase", value));
+            }
+        }
+    }
+
+    // encoding of the filtered JSON written into a string column. binary formats are written as base64.
+    public enum OutputFormat
+    {
+        JSON,
+        SMILE,
+        CBOR;
+
+        @JsonValue
+        @Override
+        public String toString()
+        {
+            return name().toLowerCase(Locale.ENGLISH);
+        }
+
+        @JsonCreator
+        public static OutputFormat fromString(String value)
+        {
+            switch (value) {
+                case "json":
+                    return JSON;
+                case "smile":
+                    return SMILE;
+                case "cbor":
+                    return CBOR;
+                default:
+                    throw new ConfigException(String.format("Unknown output_format '%s'. Supported formats are json, smile, cbor", value));
+            }
+        }
+    }
+
+    // the keys to edit in a JSON column.
+    public interface KeyFilterConfig
+            extends Task
+    {
+        // type of the filtered column. the same as the input column if not set.
+        @Config("output_type")
+        @ConfigDefault("null")
+        public Optional<OutputType> getOutputType();
+
+        @Config("output_format")
+        @ConfigDefault("\"json\"")
+        public OutputFormat getOutputFormat();
 
         @Config("add_keys")
         @ConfigDefault("[]")
@@ -45,6 +295,122 @@ public class JsonKeyFilterPlugin
         @Config("drop_keys")
         @ConfigDefault("[]")
         public List<KeyConfig> getDropKeyConfigs();
+
+        // if not empty, values which are not in these keys are dropped before add_keys and drop_keys.
+        @Config("keep_keys")
+        @ConfigDefault("[]")
+        public List<KeyConfig> getKeepKeyConfigs();
+
+        // applied after add_keys, drop_keys and keep_keys, with the values taken from the input.
+        @Config("rename_keys")
+        @ConfigDefault("[]")
+        public List<RenameKeyConfig> getRenameKeyConfigs();
+
+        // keys are matched by their input names, then written in this case.
+        @Config("key_case")
+        @ConfigDefault("null")
+        public Optional<KeyCase> getKeyCase();
+
+        // path of an array whose elements are written as separate records. "" is the document itself.
+        // the keys are applied to each element.
+        @Config("explode_path")
+        @ConfigDefault("null")
+        public Optional<String> getExplodePath();
+
+        // values of the input JSON, before the keys are edited, to be written into new columns.
+        @Config("extract_columns")
+        @ConfigDefault("[]")
+        public List<ExtractColumnConfig> getExtractColumnConfigs();
+    }
+
+    public interface ColumnConfig
+            extends KeyFilterConfig
+    {
+        @Config("name")
+        public String getName();
+    }
+
+    public interface PluginTask
+            extends KeyFilterConfig
+    {
+        @Config("column")
+        @ConfigDefault("null")
+        public Optional<String> getColumnName();
+
+        @Config("columns")
+        @ConfigDefault("[]")
+        public List<ColumnConfig> getColumnConfigs();
+
+        @Config("nested_key_delimiter")
+        @ConfigDefault("\".\"")
+        public String getNestedKeyDelimiter();
+
+        @Config("engine")
+        @ConfigDefault("\"tree\"")
+        public FilterEngine getEngine();
+
+        // number of threads filtering records of a task.
+        @Config("parallelism")
+        @ConfigDefault("1")
+        public int getParallelism();
+
+        // filters the records of each page as a batch. used when parallelism is 1.
+        @Config("batch")
+        @ConfigDefault("false")
+        public boolean getBatch();
+
+        // writes string values without the name of any dropped key as they are, without parsing them.
+        @Config("pass_through_unmatched")
+        @ConfigDefault("false")
+        public boolean getPassThroughUnmatched();
+
+        // max number of cached results for each column. 0 disables the cache.
+        @Config("cache_entries")
+        @ConfigDefault("0")
+        public int getCacheEntries();
+
+        @Config("cache_max_bytes")
+        @ConfigDefault("67108864")
+        public long getCacheMaxBytes();
+
+        // seconds between progress log lines of a task. 0 disables them.
+        @Config("progress_log_interval")
+        @ConfigDefault("60")
+        public int getProgressLogInterval();
+
+        // limits of a JSON text of string columns. 0 means no limit.
+        @Config("max_document_chars")
+        @ConfigDefault("0")
+        public long getMaxDocumentChars();
+
+        @Config("max_depth")
+        @ConfigDefault("0")
+        public int getMaxDepth();
+
+        @Config("max_nodes")
+        @ConfigDefault("0")
+        public long getMaxNodes();
+
+        @Config("limit_policy")
+        @ConfigDefault("\"fail\"")
+        public LimitPolicy getLimitPolicy();
+
+        // counts the paths of the filtered columns and the chars of their values, which are logged at the end.
+        @Config("profile")
+        @ConfigDefault("false")
+        public boolean getProfile();
+
+        // number of paths logged by count and by chars for each column.
+        @Config("profile_top_n")
+        @ConfigDefault("20")
+        public int getProfileTopN();
+
+        // set by transaction to aggregate the metrics of its tasks.
+        @Config("transaction_id")
+        @ConfigDefault("null")
+        public Optional<String> getTransactionId();
+
+        public void setTransactionId(Optional<String> transactionId);
     }
 
     private final Logger logger = Exec.getLogger(JsonKeyFilterPlugin.class);
@@ -54,9 +420,91 @@ public class JsonKeyFilterPlugin
     {
         PluginTask task = config.loadConfig(PluginTask.class);
 
-        Schema outputSchema = inputSchema;
+        if (task.getParallelism() < 1) {
+            throw new ConfigException("parallelism must be greater than 0");
+        }
+        if (task.getCacheEntries() < 0 || task.getCacheMaxBytes() < 0) {
+            throw new ConfigException("cache_entries and cache_max_bytes must not be negative");
+        }
+        if (task.getProgressLogInterval() < 0) {
+            throw new ConfigException("progress_log_interval must not be negative");
+        }
+        if (task.getMaxDocumentChars() < 0 || task.getMaxDepth() < 0 || task.getMaxNodes() < 0) {
+            throw new ConfigException("max_document_chars, max_depth and max_nodes must not be negative");
+        }
+        if (task.getProfileTopN() < 1) {
+            throw new ConfigException("profile_top_n must be greater than 0");
+        }
 
-        control.run(task.dump(), outputSchema);
+        Map<String, KeyFilterConfig> keyFilterConfigs = getKeyFilterConfigs(task);
+        ObjectMapper mapper = new ObjectMapper();
+        int explodedColumns = 0;
+        for (Map.Entry<String, KeyFilterConfig> entry : keyFilterConfigs.entrySet()) {
+            if (entry.getValue().getExplodePath().isPresent()) {
+                explodedColumns++;
+            }
+            Column column = inputSchema.lookupColumn(entry.getKey());
+            if (!(column.getType() instanceof StringType) && !(column.getType() instanceof JsonType)) {
+                throw new ConfigException(String.format("Column '%s' must be string or json type, but %s", entry.getKey(), column.getType()));
+            }
+            Type outputType = entry.getValue().getOutputType().isPresent() ? entry.getValue().getOutputType().get().getType() : column.getType();
+            if (entry.getValue().getOutputFormat() != OutputFormat.JSON && !(outputType instanceof StringType)) {
+                throw new ConfigException(String.format("output_format %s of column '%s' needs output_type string",
+                                                        entry.getValue().getOutputFormat(), entry.getKey()));
+            }
+            // fails here rather than in each task if a key or a when is not valid.
+            new ConditionalMatcher(entry.getValue(), task.getNestedKeyDelimiter(), mapper);
+        }
+
+        // exploded records are written one after another as the array is read.
+        if (explodedColumns > 1) {
+            throw new ConfigException("explode_path can be set for only one column");
+        }
+        if (explodedColumns > 0 && (task.getParallelism() > 1 || task.getBatch())) {
+            throw new ConfigException("explode_path cannot be used with parallelism greater than 1 or batch");
+        }
+
+        Schema.Builder builder = Schema.builder();
+        Set<String> columnNames = new HashSet<>();
+        for (Column column : inputSchema.getColumns()) {
+            KeyFilterConfig keyFilterConfig = keyFilterConfigs.get(column.getName());
+            if (keyFilterConfig != null && keyFilterConfig.getOutputType().isPresent()) {
+                builder.add(column.getName(), keyFilterConfig.getOutputType().get().getType());
+            }
+            else {
+                builder.add(column.getName(), column.getType());
+            }
+            columnNames.add(column.getName());
+        }
+        // extracted columns follow the input columns, in the order of the configs.
+        for (KeyFilterConfig keyFilterConfig : keyFilterConfigs.values()) {
+            for (ExtractColumnConfig extractColumnConfig : keyFilterConfig.getExtractColumnConfigs()) {
+                if (!columnNames.add(extractColumnConfig.getName())) {
+                    throw new ConfigException(String.format("Column '%s' of extract_columns already exists", extractColumnConfig.getName()));
+                }
+                builder.add(extractColumnConfig.getName(), extractColumnConfig.getType());
+            }
+        }
+        Schema outputSchema = builder.build();
+
+        String transactionId = UUID.randomUUID().toString();
+        task.setTransactionId(Optional.of(transactionId));
+        FilterMetrics.beginTransaction(transactionId);
+        if (task.getProfile()) {
+            KeyProfile.beginTransaction(transactionId);
+        }
+        try {
+            control.run(task.dump(), outputSchema);
+        }
+        finally {
+            FilterMetrics metrics = FilterMetrics.endTransaction(transactionId);
+            logger.info(String.format("Metrics of all tasks: %s", metrics));
+            if (task.getProfile()) {
+                for (Map.Entry<String, KeyProfile> profile : KeyProfile.endTransaction(transactionId).entrySet()) {
+                    profile.getValue().log(logger, String.format("Profile of column '%s' of all tasks", profile.getKey()));
+                }
+            }
+        }
     }
 
     @Override
@@ -66,4 +514,23 @@ public class JsonKeyFilterPlugin
 
         return new FilteredPageOutput(task, inputSchema, outputSchema, output);
     }
+
+    // `column` with the top-level add_keys/drop_keys comes first, then each of `columns`.
+    static Map<String, KeyFilterConfig> getKeyFilterConfigs(PluginTask task)
+    {
+        Map<String, KeyFilterConfig> configs = new LinkedHashMap<>();
+        if (task.getColumnName().isPresent()) {
+            configs.put(task.getColumnName().get(), task);
+        }
+        for (ColumnConfig columnConfig : task.getColumnConfigs()) {
+            if (configs.containsKey(columnConfig.getName())) {
+                throw new ConfigException(String.format("Column '%s' is configured twice", columnConfig.getName()));
+            }
+            configs.put(columnConfig.getName(), columnConfig);
+        }
+        if (configs.isEmpty()) {
+            throw new ConfigException("Field 'column' is required but not set");
+        }
+        return configs;
+    }
 }
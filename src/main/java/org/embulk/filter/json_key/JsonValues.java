@@ -0,0 +1,219 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.google.common.primitives.Ints;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Conversions between Jackson and the msgpack {@link Value} of Embulk json columns.
+ */
+class JsonValues
+{
+    private JsonValues()
+    {
+    }
+
+    public static Value fromJsonNode(JsonNode node)
+    {
+        if (node == null || node.isNull() || node.isMissingNode()) {
+            return ValueFactory.newNil();
+        }
+        else if (node.isObject()) {
+            ValueFactory.MapBuilder builder = ValueFactory.newMapBuilder();
+            Iterator<Map.Entry<String, JsonNode>> fields = node.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                builder.put(ValueFactory.newString(field.getKey()), fromJsonNode(field.getValue()));
+            }
+            return builder.build();
+        }
+        else if (node.isArray()) {
+            Value[] values = new Value[node.size()];
+            for (int i = 0; i < values.length; i++) {
+                values[i] = fromJsonNode(node.get(i));
+            }
+            return ValueFactory.newArray(values);
+        }
+        else if (node.isBoolean()) {
+            return ValueFactory.newBoolean(node.booleanValue());
+        }
+        else if (node.isIntegralNumber()) {
+            if (node.canConvertToLong()) {
+                return ValueFactory.newInteger(node.longValue());
+            }
+            return ValueFactory.newInteger(node.bigIntegerValue());
+        }
+        else if (node.isNumber()) {
+            return ValueFactory.newFloat(node.doubleValue());
+        }
+        else {
+            return ValueFactory.newString(node.asText());
+        }
+    }
+
+    // the value at the path of keys and array indexes, or null if there is none.
+    public static Value get(Value value, List<String> path)
+    {
+        for (String segment : path) {
+            if (value.isMapValue()) {
+                value = value.asMapValue().map().get(ValueFactory.newString(segment));
+            }
+            else if (value.isArrayValue()) {
+                Integer index = Ints.tryParse(segment);
+                if (index == null || index < 0 || index >= value.asArrayValue().size()) {
+                    return null;
+                }
+                value = value.asArrayValue().get(index);
+            }
+            else {
+                return null;
+            }
+            if (value == null) {
+                return null;
+            }
+        }
+        return value;
+    }
+
+    // a copy of the value with the key at the path set to newValue. the maps and arrays on the path are rebuilt
+    // and the others are shared. null if the map to hold the key is not there.
+    public static Value set(Value value, List<String> path, Value newValue)
+    {
+        return set(value, path, 0, newValue);
+    }
+
+    private static Value set(Value value, List<String> path, int depth, Value newValue)
+    {
+        String segment = path.get(depth);
+        if (value.isMapValue()) {
+            Map<Value, Value> map = new LinkedHashMap<>(value.asMapValue().map());
+            Value key = ValueFactory.newString(segment);
+            if (depth < path.size() - 1) {
+                Value child = map.get(key);
+                newValue = child == null ? null : set(child, path, depth + 1, newValue);
+                if (newValue == null) {
+                    return null;
+                }
+            }
+            map.put(key, newValue);
+            return ValueFactory.newMap(map);
+        }
+        else if (value.isArrayValue() && depth < path.size() - 1) {
+            Integer index = Ints.tryParse(segment);
+            if (index == null || index < 0 || index >= value.asArrayValue().size()) {
+                return null;
+            }
+            newValue = set(value.asArrayValue().get(index), path, depth + 1, newValue);
+            if (newValue == null) {
+                return null;
+            }
+            List<Value> values = new ArrayList<>(value.asArrayValue().list());
+            values.set(index, newValue);
+            return ValueFactory.newArray(values);
+        }
+        return null;
+    }
+
+    // writes the value as the tokens of a JSON document, to a generator of any format.
+    public static void writeValue(JsonGenerator generator, Value value)
+            throws IOException
+    {
+        switch (value.getValueType()) {
+            case NIL:
+                generator.writeNull();
+                break;
+            case BOOLEAN:
+                generator.writeBoolean(value.asBooleanValue().getBoolean());
+                break;
+            case INTEGER:
+                if (value.asIntegerValue().isInLongRange()) {
+                    generator.writeNumber(value.asIntegerValue().toLong());
+                }
+                else {
+                    generator.writeNumber(value.asIntegerValue().toBigInteger());
+                }
+                break;
+            case FLOAT:
+                generator.writeNumber(value.asFloatValue().toDouble());
+                break;
+            case STRING:
+                generator.writeString(value.asStringValue().asString());
+                break;
+            case ARRAY:
+                generator.writeStartArray();
+                for (Value element : value.asArrayValue()) {
+                    writeValue(generator, element);
+                }
+                generator.writeEndArray();
+                break;
+            case MAP:
+                generator.writeStartObject();
+                for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                    generator.writeFieldName(entry.getKey().isStringValue() ? entry.getKey().asStringValue().asString() : entry.getKey().toJson());
+                    writeValue(generator, entry.getValue());
+                }
+                generator.writeEndObject();
+                break;
+            case BINARY:
+                generator.writeBinary(value.asBinaryValue().asByteArray());
+                break;
+            default:
+                // extension values have no JSON form.
+                generator.writeNull();
+                break;
+        }
+    }
+
+    // builds the value starting at the current token of the parser, leaving the parser on its last token.
+    public static Value fromParser(JsonParser parser)
+            throws IOException
+    {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) {
+            return ValueFactory.newNil();
+        }
+
+        switch (token) {
+            case START_OBJECT:
+                ValueFactory.MapBuilder builder = ValueFactory.newMapBuilder();
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String key = parser.getCurrentName();
+                    parser.nextToken();
+                    builder.put(ValueFactory.newString(key), fromParser(parser));
+                }
+                return builder.build();
+            case START_ARRAY:
+                List<Value> values = new ArrayList<>();
+                while (parser.nextToken() != JsonToken.END_ARRAY) {
+                    values.add(fromParser(parser));
+                }
+                return ValueFactory.newArray(values);
+            case VALUE_NUMBER_INT:
+                if (parser.getNumberType() == JsonParser.NumberType.BIG_INTEGER) {
+                    return ValueFactory.newInteger(parser.getBigIntegerValue());
+                }
+                return ValueFactory.newInteger(parser.getLongValue());
+            case VALUE_NUMBER_FLOAT:
+                return ValueFactory.newFloat(parser.getDoubleValue());
+            case VALUE_TRUE:
+                return ValueFactory.newBoolean(true);
+            case VALUE_FALSE:
+                return ValueFactory.newBoolean(false);
+            case VALUE_NULL:
+                return ValueFactory.newNil();
+            default:
+                return ValueFactory.newString(parser.getText());
+        }
+    }
+}
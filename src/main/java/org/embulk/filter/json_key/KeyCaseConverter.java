@@ -0,0 +1,168 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyCase;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Converts the keys of JSON documents into a {@link KeyCase}.
+ *
+ * Documents of a column tend to repeat the same keys, so converted keys are cached.
+ * Keys which become the same name in one object are not merged: the last one wins in trees and msgpack values,
+ * and the streaming engine writes both.
+ */
+class KeyCaseConverter
+{
+    // the cache is cleared when it is full, which only happens with keys of unbounded cardinality.
+    private static final int MAX_CACHED_KEYS = 4096;
+
+    private final KeyCase keyCase;
+    private final Map<String, String> cache = new HashMap<>();
+
+    KeyCaseConverter(KeyCase keyCase)
+    {
+        this.keyCase = keyCase;
+    }
+
+    public String convert(String key)
+    {
+        String converted = cache.get(key);
+        if (converted == null) {
+            converted = keyCase == KeyCase.SNAKE_CASE ? toSnakeCase(key) : key.toLowerCase(Locale.ENGLISH);
+            if (cache.size() >= MAX_CACHED_KEYS) {
+                cache.clear();
+            }
+            cache.put(key, converted);
+        }
+        return converted;
+    }
+
+    // "userId" and "UserID" become "user_id", "HTTPRequest" becomes "http_request", and "-" or " " becomes "_".
+    static String toSnakeCase(String key)
+    {
+        int length = key.length();
+        StringBuilder builder = new StringBuilder(length + 4);
+        for (int i = 0; i < length; i++) {
+            char c = key.charAt(i);
+            if (c == '-' || c == ' ') {
+                builder.append('_');
+            }
+            else if (Character.isUpperCase(c)) {
+                if (i > 0 && builder.charAt(builder.length() - 1) != '_') {
+                    char previous = key.charAt(i - 1);
+                    boolean nextLower = i + 1 < length && Character.isLowerCase(key.charAt(i + 1));
+                    // the start of a word, or the last capital of an acronym followed by a word.
+                    if (Character.isLowerCase(previous) || Character.isDigit(previous) || (Character.isUpperCase(previous) && nextLower)) {
+                        builder.append('_');
+                    }
+                }
+                builder.append(Character.toLowerCase(c));
+            }
+            else {
+                builder.append(c);
+            }
+        }
+        return builder.toString();
+    }
+
+    // converts the keys of all objects in the tree, in place.
+    public void convertKeys(JsonNode node)
+    {
+        if (node == null) {
+            return;
+        }
+        if (node.isObject()) {
+            ObjectNode object = (ObjectNode) node;
+            boolean changed = false;
+            Iterator<Map.Entry<String, JsonNode>> fields = object.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                convertKeys(field.getValue());
+                changed |= !convert(field.getKey()).equals(field.getKey());
+            }
+            if (changed) {
+                Map<String, JsonNode> converted = new LinkedHashMap<>();
+                fields = object.fields();
+                while (fields.hasNext()) {
+                    Map.Entry<String, JsonNode> field = fields.next();
+                    converted.put(convert(field.getKey()), field.getValue());
+                }
+                object.removeAll();
+                object.setAll(converted);
+            }
+        }
+        else if (node.isArray()) {
+            for (JsonNode element : node) {
+                convertKeys(element);
+            }
+        }
+    }
+
+    // returns the value with the keys of all maps converted. values without maps are returned as they are.
+    public Value convertKeys(Value value)
+    {
+        if (value.isMapValue()) {
+            ValueFactory.MapBuilder builder = ValueFactory.newMapBuilder();
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                Value key = entry.getKey();
+                if (key.isStringValue()) {
+                    String name = key.asStringValue().asString();
+                    String converted = convert(name);
+                    if (!converted.equals(name)) {
+                        key = ValueFactory.newString(converted);
+                    }
+                }
+                builder.put(key, convertKeys(entry.getValue()));
+            }
+            return builder.build();
+        }
+        else if (value.isArrayValue()) {
+            List<Value> values = new ArrayList<>(value.asArrayValue().size());
+            for (Value element : value.asArrayValue()) {
+                values.add(convertKeys(element));
+            }
+            return ValueFactory.newArray(values);
+        }
+        return value;
+    }
+
+    // JsonGenerator#copyCurrentStructure with the keys converted.
+    public void copy(JsonParser parser, JsonGenerator generator)
+            throws IOException
+    {
+        JsonToken token = parser.getCurrentToken();
+        int open = 0;
+        while (token != null) {
+            if (token == JsonToken.FIELD_NAME) {
+                generator.writeFieldName(convert(parser.getCurrentName()));
+            }
+            else {
+                generator.copyCurrentEvent(parser);
+                if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                    open++;
+                }
+                else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                    open--;
+                }
+            }
+            if (open == 0 && token != JsonToken.FIELD_NAME) {
+                return;
+            }
+            token = parser.nextToken();
+        }
+    }
+}
@@ -0,0 +1,694 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.JsonNodeFactory;
+import com.fasterxml.jackson.databind.util.RawValue;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Ints;
+import org.embulk.config.ConfigException;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.ExtractColumnConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.KeyFilterConfig;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.RenameKeyConfig;
+import org.msgpack.value.Value;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * All add_keys, drop_keys, keep_keys, rename_keys and the paths of extract_columns compiled into one deterministic
+ * automaton over path segments.
+ *
+ * A path segment is a key name or an array index, {@code *} (any one key or index)
+ * or {@code **} (any number of keys and indexes, including none). Each {@link State} is the set of
+ * positions reached in all paths at once, so a document is visited once whatever the number of keys.
+ * With keep_keys, values which are neither kept nor on the way to a kept value are dropped.
+ * The old key of a rename is dropped and its value taken like extract_columns; the new key marks where it is written.
+ * States and their transitions are built lazily while documents are visited, and then reused.
+ * A matcher is not thread-safe; each JsonKeyFilter compiles its own.
+ */
+class KeyPathMatcher
+{
+    static final String ANY_SEGMENT = "*";
+    static final String ANY_SEGMENTS = "**";
+
+    // the position of all values in a kept value.
+    private static final int KEPT = Integer.MAX_VALUE;
+
+    // add_keys, drop_keys, keep_keys, extract_columns and rename_keys in this order.
+    private final List<Path> paths;
+    private final int addCount;
+    private final int dropCount;
+    private final boolean keepMode;
+    private final boolean extractMode;
+    // segments of the new key of each rename_keys.
+    private final List<List<String>> moveTargets;
+    // true if the object of each new key of rename_keys encloses the old key.
+    private final boolean upwardMoves;
+    private final int stride;
+    private final Map<PositionSet, State> states = new HashMap<>();
+    private final State root;
+    // placeholder of a key transition which is not built yet.
+    private final State unresolved;
+
+    private static class Path
+    {
+        private final List<String> segments;
+        // array index of each segment, or -1.
+        private final int[] indexes;
+        private final JsonNode addValue;
+        private final Value addMsgpackValue;
+        // addValue serialized once, to be written as is.
+        private final String addJson;
+        private final JsonNode addRawValue;
+        private final boolean keep;
+        // index in extract_columns, or -1. the old keys of rename_keys take the indexes after extract_columns.
+        private final int extractIndex;
+        // index in rename_keys, or -1. moveTarget is true for the new key and false for the old key.
+        private final int moveIndex;
+        private final boolean moveTarget;
+
+        private Path(List<String> segments, JsonNode addValue, String addJson, boolean keep, int extractIndex)
+        {
+            this(segments, addValue, addJson, keep, extractIndex, -1, false);
+        }
+
+        private Path(List<String> segments, JsonNode addValue, String addJson, boolean keep, int extractIndex, int moveIndex, boolean moveTarget)
+        {
+            this.keep = keep;
+            this.extractIndex = extractIndex;
+            this.moveIndex = moveIndex;
+            this.moveTarget = moveTarget;
+            this.segments = segments;
+            this.indexes = new int[segments.size()];
+            for (int i = 0; i < indexes.length; i++) {
+                Integer index = Ints.tryParse(segments.get(i));
+                indexes[i] = index == null ? -1 : index;
+            }
+            this.addValue = addValue;
+            this.addMsgpackValue = addValue == null ? null : JsonValues.fromJsonNode(addValue);
+            this.addJson = addJson;
+            this.addRawValue = addJson == null ? null : JsonNodeFactory.instance.rawValueNode(new RawValue(addJson));
+        }
+
+        private boolean isWildcard(int position)
+        {
+            String segment = segments.get(position);
+            return segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS);
+        }
+    }
+
+    // sorted positions of a state. a position is pathIndex * stride + segmentIndex.
+    private static class PositionSet
+    {
+        private final int[] positions;
+
+        private PositionSet(int[] positions)
+        {
+            this.positions = positions;
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            return o instanceof PositionSet && Arrays.equals(positions, ((PositionSet) o).positions);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Arrays.hashCode(positions);
+        }
+    }
+
+    static class AddedKey
+    {
+        private final String name;
+        private final State state;
+
+        private AddedKey(String name, State state)
+        {
+            this.name = name;
+            this.state = state;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        public JsonNode getValue()
+        {
+            return state.getAddValue();
+        }
+
+        public Value getMsgpackValue()
+        {
+            return state.getAddMsgpackValue();
+        }
+
+        public String getJson()
+        {
+            return state.getAddJson();
+        }
+
+        public JsonNode getRawValue()
+        {
+            return state.getAddRawValue();
+        }
+    }
+
+    static class MovedKey
+    {
+        private final String name;
+        private final int index;
+
+        private MovedKey(String name, int index)
+        {
+            this.name = name;
+            this.index = index;
+        }
+
+        public String getName()
+        {
+            return name;
+        }
+
+        // index in rename_keys, also of ColumnExtractor#getMoved.
+        public int getIndex()
+        {
+            return index;
+        }
+    }
+
+    class State
+    {
+        private final int[] positions;
+        private final boolean live;
+        private final boolean dropped;
+        private final Path added;
+        // rename_keys whose new key is this value, or -1.
+        private final int moveIndex;
+        // extract_columns which take the value.
+        private final int[] extractIndexes;
+        // true if extract_columns may take a descendant of the value.
+        private final boolean extractLive;
+        // true if nothing is to be done for the value, so it can be copied as is.
+        private final boolean inert;
+        // transitions by the key names in the paths. unresolved until first used.
+        private final Map<String, State> keyTransitions = new HashMap<>();
+        private final String[] literalKeys;
+        private final int[] literalIndexes;
+        private final State[] indexTransitions;
+        // transition by any other key or index. null until first used.
+        private State otherTransition;
+        private List<AddedKey> addedKeys;
+        private Map<String, Integer> addIndexes;
+        private List<MovedKey> movedKeys;
+
+        private State(int[] positions)
+        {
+            this.positions = positions;
+            boolean live = false;
+            boolean dropped = false;
+            boolean selected = false;
+            boolean extractLive = false;
+            Path added = null;
+            int moveIndex = -1;
+            List<Integer> extractIndexes = new ArrayList<>();
+            List<Integer> literalIndexes = new ArrayList<>();
+            for (int position : positions) {
+                if (position == KEPT) {
+                    selected = true;
+                    continue;
+                }
+                Path path = paths.get(position / stride);
+                int segment = position % stride;
+                if (segment == path.segments.size()) {
+                    if (path.moveTarget) {
+                        moveIndex = path.moveIndex;
+                    }
+                    else if (path.extractIndex >= 0) {
+                        extractIndexes.add(path.extractIndex);
+                        // the old key of a rename.
+                        dropped |= path.moveIndex >= 0;
+                    }
+                    else if (path.addValue == null) {
+                        dropped = true;
+                    }
+                    else {
+                        added = path;
+                    }
+                    continue;
+                }
+
+                live = true;
+                selected |= path.keep;
+                extractLive |= path.extractIndex >= 0;
+                if (!path.isWildcard(segment)) {
+                    keyTransitions.put(path.segments.get(segment), unresolved);
+                    if (path.indexes[segment] >= 0 && !literalIndexes.contains(path.indexes[segment])) {
+                        literalIndexes.add(path.indexes[segment]);
+                    }
+                }
+            }
+            // add_keys are applied before drop_keys, so a key both added and dropped is dropped.
+            // keep_keys are applied before both, so an added key is kept.
+            this.live = live;
+            this.added = dropped ? null : added;
+            this.dropped = dropped || (keepMode && !selected && this.added == null);
+            this.extractIndexes = Ints.toArray(extractIndexes);
+            this.extractLive = extractLive;
+            this.moveIndex = moveIndex;
+            this.inert = !live && !this.dropped && this.added == null && this.extractIndexes.length == 0 && moveIndex < 0;
+            this.literalKeys = keyTransitions.keySet().toArray(new String[keyTransitions.size()]);
+            this.literalIndexes = Ints.toArray(literalIndexes);
+            Arrays.sort(this.literalIndexes);
+            this.indexTransitions = new State[this.literalIndexes.length];
+        }
+
+        // the state for the value of the key, or null if no path can match it.
+        public State getChild(String key)
+        {
+            State child = keyTransitions.get(key);
+            if (child == null) {
+                child = getOtherChild();
+            }
+            else if (child == unresolved) {
+                child = transition(this, key, -1);
+                keyTransitions.put(key, child);
+            }
+            return child.inert ? null : child;
+        }
+
+        // the state for the array element at the index, or null if no path can match it.
+        public State getChild(int index)
+        {
+            State child;
+            int found = Arrays.binarySearch(literalIndexes, index);
+            if (found < 0) {
+                child = getOtherChild();
+            }
+            else {
+                child = indexTransitions[found];
+                if (child == null) {
+                    child = transition(this, null, index);
+                    indexTransitions[found] = child;
+                }
+            }
+            return child.inert ? null : child;
+        }
+
+        private State getOtherChild()
+        {
+            if (otherTransition == null) {
+                otherTransition = transition(this, null, -1);
+            }
+            return otherTransition;
+        }
+
+        // true if any path may match a descendant of this value.
+        public boolean hasChildren()
+        {
+            return live;
+        }
+
+        // true if only keys named in paths can have a state, so the caller may look them up
+        // instead of visiting every key of the value.
+        public boolean hasOnlyLiteralChildren()
+        {
+            return getOtherChild().inert;
+        }
+
+        // key names of the literal segments. meaningful only if hasOnlyLiteralChildren.
+        public String[] getLiteralKeys()
+        {
+            return literalKeys;
+        }
+
+        public int[] getLiteralIndexes()
+        {
+            return literalIndexes;
+        }
+
+        public boolean hasExtracts()
+        {
+            return extractIndexes.length > 0;
+        }
+
+        // indexes of the extract_columns which take the value of this state, before it is edited.
+        public int[] getExtractIndexes()
+        {
+            return extractIndexes;
+        }
+
+        public boolean hasExtractsBelow()
+        {
+            return extractLive;
+        }
+
+        // true if the input value is needed for extract_columns although it is dropped or replaced.
+        public boolean hasInputToExtract()
+        {
+            return extractIndexes.length > 0 || ((dropped || added != null) && extractLive);
+        }
+
+        public boolean isDropped()
+        {
+            return dropped;
+        }
+
+        public boolean isAdded()
+        {
+            return added != null;
+        }
+
+        public JsonNode getAddValue()
+        {
+            return added == null ? null : added.addValue;
+        }
+
+        // the added value for json columns.
+        public Value getAddMsgpackValue()
+        {
+            return added == null ? null : added.addMsgpackValue;
+        }
+
+        // the added value as JSON text, to be written with JsonGenerator#writeRawValue.
+        public String getAddJson()
+        {
+            return added == null ? null : added.addJson;
+        }
+
+        // a node which writes getAddJson as is, for trees to be written as JSON text.
+        public JsonNode getAddRawValue()
+        {
+            return added == null ? null : added.addRawValue;
+        }
+
+        // keys to be added to the object of this state, in the order of add_keys.
+        public List<AddedKey> getAddedKeys()
+        {
+            if (addedKeys == null) {
+                Map<String, AddedKey> keys = new LinkedHashMap<>();
+                for (int position : positions) {
+                    if (position == KEPT) {
+                        continue;
+                    }
+                    int pathIndex = position / stride;
+                    Path path = paths.get(pathIndex);
+                    int segment = position % stride;
+                    if (pathIndex < addCount && segment == path.segments.size() - 1 && !keys.containsKey(path.segments.get(segment))) {
+                        String name = path.segments.get(segment);
+                        State child = getChild(name);
+                        if (child != null && child.isAdded()) {
+                            keys.put(name, new AddedKey(name, child));
+                        }
+                    }
+                }
+                this.addedKeys = ImmutableList.copyOf(keys.values());
+                this.addIndexes = new HashMap<>();
+                for (int i = 0; i < addedKeys.size(); i++) {
+                    addIndexes.put(addedKeys.get(i).getName(), i);
+                }
+            }
+            return addedKeys;
+        }
+
+        // position of the key in getAddedKeys, or -1.
+        public int getAddIndex(String key)
+        {
+            getAddedKeys();
+            Integer index = addIndexes.get(key);
+            return index == null ? -1 : index;
+        }
+
+        // the rename_keys whose new key is this value, or -1.
+        public int getMoveIndex()
+        {
+            return moveIndex;
+        }
+
+        // new keys of rename_keys in the object of this state, in the order of rename_keys.
+        public List<MovedKey> getMovedKeys()
+        {
+            if (movedKeys == null) {
+                ImmutableList.Builder<MovedKey> keys = ImmutableList.builder();
+                for (int position : positions) {
+                    if (position == KEPT) {
+                        continue;
+                    }
+                    Path path = paths.get(position / stride);
+                    int segment = position % stride;
+                    if (path.moveTarget && segment == path.segments.size() - 1) {
+                        keys.add(new MovedKey(path.segments.get(segment), path.moveIndex));
+                    }
+                }
+                this.movedKeys = keys.build();
+            }
+            return movedKeys;
+        }
+    }
+
+    private KeyPathMatcher(List<Path> paths, int addCount, int dropCount, int keepCount)
+    {
+        this.paths = paths;
+        this.addCount = addCount;
+        this.dropCount = dropCount;
+        this.keepMode = keepCount > 0;
+        this.extractMode = addCount + dropCount + keepCount < paths.size();
+        ImmutableList.Builder<List<String>> moveTargets = ImmutableList.builder();
+        boolean upwardMoves = true;
+        Path moveSource = null;
+        for (Path path : paths) {
+            if (path.moveIndex < 0) {
+                continue;
+            }
+            // each old key is followed by its new key.
+            if (!path.moveTarget) {
+                moveSource = path;
+                continue;
+            }
+            moveTargets.add(path.segments);
+            List<String> parent = path.segments.subList(0, path.segments.size() - 1);
+            List<String> sourceParent = moveSource.segments.subList(0, moveSource.segments.size() - 1);
+            upwardMoves &= parent.size() <= sourceParent.size() && sourceParent.subList(0, parent.size()).equals(parent);
+        }
+        this.moveTargets = moveTargets.build();
+        this.upwardMoves = upwardMoves;
+        int maxSegments = 0;
+        for (Path path : paths) {
+            maxSegments = Math.max(maxSegments, path.segments.size());
+        }
+        this.stride = maxSegments + 1;
+        this.unresolved = new State(new int[0]);
+
+        int[] initial = new int[paths.size()];
+        for (int i = 0; i < initial.length; i++) {
+            initial[i] = i * stride;
+        }
+        this.root = getState(closure(initial, initial.length));
+    }
+
+    public State getRoot()
+    {
+        return root;
+    }
+
+    public boolean hasAddedKeys()
+    {
+        return addCount > 0;
+    }
+
+    public boolean hasKeptKeys()
+    {
+        return keepMode;
+    }
+
+    // true with extract_columns or rename_keys, whose values are taken from the input.
+    public boolean hasExtractedPaths()
+    {
+        return extractMode;
+    }
+
+    // segments of the new key of each rename_keys, by its index.
+    public List<List<String>> getMoveTargets()
+    {
+        return moveTargets;
+    }
+
+    // true if every new key of rename_keys is in an object which encloses its old key: a rename in the same object
+    // or a move to an outer object. then each moved value is read before the end of the object it is written into.
+    public boolean hasOnlyUpwardMoves()
+    {
+        return upwardMoves;
+    }
+
+    // segments of each drop_keys.
+    public List<List<String>> getDroppedPaths()
+    {
+        ImmutableList.Builder<List<String>> builder = ImmutableList.builder();
+        for (Path path : paths.subList(addCount, addCount + dropCount)) {
+            builder.add(path.segments);
+        }
+        return builder.build();
+    }
+
+    // if the same key is added twice, the last value wins.
+    static KeyPathMatcher compile(KeyFilterConfig keyFilterConfig, String delimiter, ObjectMapper mapper)
+    {
+        return compile(keyFilterConfig, delimiter, mapper, new BitSet());
+    }
+
+    // rules are numbered through add_keys, drop_keys and keep_keys in this order. the disabled ones are left out.
+    static KeyPathMatcher compile(KeyFilterConfig keyFilterConfig, String delimiter, ObjectMapper mapper, BitSet disabledRules)
+    {
+        Splitter splitter = Splitter.on(delimiter);
+        List<Path> paths = new ArrayList<>();
+        int rule = 0;
+        int addCount = 0;
+        int dropCount = 0;
+        int keepCount = 0;
+        for (KeyConfig keyConfig : keyFilterConfig.getAddKeyConfigs()) {
+            if (disabledRules.get(rule++)) {
+                continue;
+            }
+            List<String> segments = splitter.splitToList(keyConfig.getKey());
+            String last = segments.get(segments.size() - 1);
+            if (last.equals(ANY_SEGMENT) || last.equals(ANY_SEGMENTS)) {
+                throw new ConfigException(String.format("The last segment of add_keys must be a key name: %s", keyConfig.getKey()));
+            }
+            // converted into a tree once here, so it can also be turned into a msgpack value.
+            JsonNode addValue = keyConfig.getValue().isPresent()
+                    ? mapper.valueToTree(keyConfig.getValue().get())
+                    : mapper.getNodeFactory().nullNode();
+            // added values are written as they are, so their keys are converted here.
+            if (keyFilterConfig.getKeyCase().isPresent()) {
+                new KeyCaseConverter(keyFilterConfig.getKeyCase().get()).convertKeys(addValue);
+            }
+            String addJson;
+            try {
+                addJson = mapper.writeValueAsString(addValue);
+            }
+            catch (JsonProcessingException e) {
+                throw new ConfigException(e);
+            }
+            paths.add(new Path(segments, addValue, addJson, false, -1));
+            addCount++;
+        }
+        for (KeyConfig keyConfig : keyFilterConfig.getDropKeyConfigs()) {
+            if (disabledRules.get(rule++)) {
+                continue;
+            }
+            paths.add(new Path(splitter.splitToList(keyConfig.getKey()), null, null, false, -1));
+            dropCount++;
+        }
+        for (KeyConfig keyConfig : keyFilterConfig.getKeepKeyConfigs()) {
+            if (disabledRules.get(rule++)) {
+                continue;
+            }
+            paths.add(new Path(splitter.splitToList(keyConfig.getKey()), null, null, true, -1));
+            keepCount++;
+        }
+        List<ExtractColumnConfig> extractColumnConfigs = keyFilterConfig.getExtractColumnConfigs();
+        for (int i = 0; i < extractColumnConfigs.size(); i++) {
+            paths.add(new Path(splitter.splitToList(extractColumnConfigs.get(i).getPath()), null, null, false, i));
+        }
+        List<RenameKeyConfig> renameKeyConfigs = keyFilterConfig.getRenameKeyConfigs();
+        for (int i = 0; i < renameKeyConfigs.size(); i++) {
+            RenameKeyConfig renameKeyConfig = renameKeyConfigs.get(i);
+            List<String> from = splitter.splitToList(renameKeyConfig.getFrom());
+            List<String> to = splitter.splitToList(renameKeyConfig.getTo());
+            if (from.contains(ANY_SEGMENT) || from.contains(ANY_SEGMENTS) || to.contains(ANY_SEGMENT) || to.contains(ANY_SEGMENTS)) {
+                throw new ConfigException(String.format("rename_keys cannot have wildcards: %s to %s", renameKeyConfig.getFrom(), renameKeyConfig.getTo()));
+            }
+            int common = Math.min(from.size(), to.size());
+            if (from.subList(0, common).equals(to.subList(0, common))) {
+                throw new ConfigException(String.format("rename_keys cannot move a key into itself or its own parent: %s to %s",
+                                                        renameKeyConfig.getFrom(), renameKeyConfig.getTo()));
+            }
+            paths.add(new Path(from, null, null, false, extractColumnConfigs.size() + i, i, false));
+            paths.add(new Path(to, null, null, false, -1, i, true));
+        }
+        return new KeyPathMatcher(paths, addCount, dropCount, keepCount);
+    }
+
+    // key is null for an array index or for any key not in the paths. index is -1 for keys.
+    private State transition(State from, String key, int index)
+    {
+        int[] next = new int[from.positions.length * 2];
+        int count = 0;
+        for (int position : from.positions) {
+            if (position == KEPT) {
+                next[count++] = KEPT;
+                continue;
+            }
+            Path path = paths.get(position / stride);
+            int segment = position % stride;
+            if (segment == path.segments.size()) {
+                continue;
+            }
+
+            String name = path.segments.get(segment);
+            if (name.equals(ANY_SEGMENTS)) {
+                next[count++] = position;
+            }
+            else if (name.equals(ANY_SEGMENT)) {
+                next[count++] = position + 1;
+            }
+            else if (key != null ? name.equals(key) : index >= 0 && path.indexes[segment] == index) {
+                next[count++] = position + 1;
+            }
+        }
+        return getState(closure(next, count));
+    }
+
+    // adds the positions after each "**", which also matches no segment, and replaces the ends of
+    // keep_keys with KEPT. returns sorted unique positions.
+    private int[] closure(int[] positions, int count)
+    {
+        List<Integer> closed = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            int position = positions[i];
+            if (position == KEPT) {
+                closed.add(KEPT);
+                continue;
+            }
+            Path path = paths.get(position / stride);
+            int segment = position % stride;
+            while (segment < path.segments.size() && path.segments.get(segment).equals(ANY_SEGMENTS)) {
+                closed.add(position++);
+                segment++;
+            }
+            closed.add(segment == path.segments.size() && path.keep ? KEPT : position);
+        }
+        int[] sorted = Ints.toArray(closed);
+        Arrays.sort(sorted);
+        int unique = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (unique == 0 || sorted[unique - 1] != sorted[i]) {
+                sorted[unique++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, unique);
+    }
+
+    private State getState(int[] positions)
+    {
+        PositionSet key = new PositionSet(positions);
+        State state = states.get(key);
+        if (state == null) {
+            state = new State(positions);
+            states.put(key, state);
+        }
+        return state;
+    }
+}
@@ -0,0 +1,310 @@
+package org.embulk.filter.json_key;
+
+import org.msgpack.value.Value;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * How often each path of a JSON column occurs and how many chars its values take, in fixed memory.
+ *
+ * Counts and chars are kept in two count-min sketches, which may overestimate but never underestimate.
+ * The paths with the highest estimates are kept as heavy hitter candidates, a few times more than reported.
+ * Elements of arrays are counted under {@code *}, so paths have the same syntax as drop_keys.
+ *
+ * Each JsonKeyFilter owns a profile updated by a single thread. Profiles of a column are merged at the end of
+ * the task, and again in {@link JsonKeyFilterPlugin#transaction} as FilterMetrics are.
+ */
+class KeyProfile
+{
+    private static final ConcurrentMap<String, Map<String, KeyProfile>> transactions = new ConcurrentHashMap<>();
+
+    private static final int DEPTH = 4;
+    private static final int WIDTH = 1 << 12;
+    // one seed for each row of the sketches.
+    private static final int[] SEEDS = {0x9e3779b9, 0x85ebca6b, 0xc2b2ae35, 0x27d4eb2f};
+    // candidates kept for each reported path.
+    private static final int CANDIDATES_PER_PATH = 4;
+
+    private final int topN;
+    private final long[][] counts = new long[DEPTH][WIDTH];
+    private final long[][] chars = new long[DEPTH][WIDTH];
+    private final Candidates countCandidates;
+    private final Candidates charsCandidates;
+    private long paths = 0;
+
+    static class Entry
+    {
+        private final String path;
+        private final long count;
+        private final long chars;
+
+        private Entry(String path, long count, long chars)
+        {
+            this.path = path;
+            this.count = count;
+            this.chars = chars;
+        }
+
+        public String getPath()
+        {
+            return path;
+        }
+
+        public long getCount()
+        {
+            return count;
+        }
+
+        public long getChars()
+        {
+            return chars;
+        }
+
+        @Override
+        public String toString()
+        {
+            return String.format(Locale.ENGLISH, "%s: %d values, %d chars", path, count, chars);
+        }
+    }
+
+    // the paths with the highest estimates seen so far, up to a capacity.
+    private static class Candidates
+    {
+        private final int capacity;
+        private final Map<String, Long> estimates = new HashMap<>();
+        private String minPath = null;
+        private long minEstimate = 0;
+
+        private Candidates(int capacity)
+        {
+            this.capacity = capacity;
+        }
+
+        private void offer(String path, long estimate)
+        {
+            if (estimates.containsKey(path)) {
+                estimates.put(path, estimate);
+                if (path.equals(minPath)) {
+                    findMin();
+                }
+            }
+            else if (estimates.size() < capacity) {
+                estimates.put(path, estimate);
+                if (minPath == null || estimate < minEstimate) {
+                    minPath = path;
+                    minEstimate = estimate;
+                }
+            }
+            else if (estimate > minEstimate) {
+                estimates.remove(minPath);
+                estimates.put(path, estimate);
+                findMin();
+            }
+        }
+
+        private void findMin()
+        {
+            minPath = null;
+            for (Map.Entry<String, Long> entry : estimates.entrySet()) {
+                if (minPath == null || entry.getValue() < minEstimate) {
+                    minPath = entry.getKey();
+                    minEstimate = entry.getValue();
+                }
+            }
+        }
+    }
+
+    KeyProfile(int topN)
+    {
+        this.topN = topN;
+        this.countCandidates = new Candidates(topN * CANDIDATES_PER_PATH);
+        this.charsCandidates = new Candidates(topN * CANDIDATES_PER_PATH);
+    }
+
+    // one value at the path, taking the chars of its key and value in the JSON text.
+    public void add(String path, long valueChars)
+    {
+        paths++;
+        long count = Long.MAX_VALUE;
+        long total = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            int column = index(path, row);
+            count = Math.min(count, ++counts[row][column]);
+            total = Math.min(total, chars[row][column] += valueChars);
+        }
+        countCandidates.offer(path, count);
+        charsCandidates.offer(path, total);
+    }
+
+    // adds all paths of a json column value. the chars are those of its JSON text without spaces and escapes.
+    public void addPaths(Value value, String delimiter)
+    {
+        addPaths(value, null, delimiter);
+    }
+
+    // returns the chars of the value.
+    private long addPaths(Value value, String path, String delimiter)
+    {
+        long valueChars;
+        if (value.isMapValue()) {
+            valueChars = 2;
+            for (Map.Entry<Value, Value> entry : value.asMapValue().entrySet()) {
+                String key = entry.getKey().isStringValue() ? entry.getKey().asStringValue().asString() : entry.getKey().toJson();
+                String childPath = path == null ? key : path + delimiter + key;
+                // "key": and a comma.
+                long entryChars = key.length() + 4 + addPaths(entry.getValue(), childPath, delimiter);
+                add(childPath, entryChars);
+                valueChars += entryChars;
+            }
+        }
+        else if (value.isArrayValue()) {
+            valueChars = 2;
+            String childPath = path == null ? KeyPathMatcher.ANY_SEGMENT : path + delimiter + KeyPathMatcher.ANY_SEGMENT;
+            for (Value element : value.asArrayValue()) {
+                long elementChars = addPaths(element, childPath, delimiter) + 1;
+                add(childPath, elementChars);
+                valueChars += elementChars;
+            }
+        }
+        else if (value.isStringValue()) {
+            valueChars = value.asStringValue().asString().length() + 2;
+        }
+        else {
+            valueChars = value.toJson().length();
+        }
+        return valueChars;
+    }
+
+    public void merge(KeyProfile other)
+    {
+        paths += other.paths;
+        for (int row = 0; row < DEPTH; row++) {
+            for (int column = 0; column < WIDTH; column++) {
+                counts[row][column] += other.counts[row][column];
+                chars[row][column] += other.chars[row][column];
+            }
+        }
+        // the candidates of both are estimated again with the merged sketches.
+        List<String> candidates = new ArrayList<>(countCandidates.estimates.keySet());
+        candidates.addAll(charsCandidates.estimates.keySet());
+        candidates.addAll(other.countCandidates.estimates.keySet());
+        candidates.addAll(other.charsCandidates.estimates.keySet());
+        for (String path : candidates) {
+            countCandidates.offer(path, estimate(counts, path));
+            charsCandidates.offer(path, estimate(chars, path));
+        }
+    }
+
+    public List<Entry> getTopByCount()
+    {
+        return top(countCandidates);
+    }
+
+    public List<Entry> getTopByChars()
+    {
+        return top(charsCandidates);
+    }
+
+    private List<Entry> top(Candidates candidates)
+    {
+        List<Entry> entries = new ArrayList<>(candidates.estimates.size());
+        for (String path : candidates.estimates.keySet()) {
+            entries.add(new Entry(path, estimate(counts, path), estimate(chars, path)));
+        }
+        final boolean byCount = candidates == countCandidates;
+        Collections.sort(entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare(Entry a, Entry b)
+            {
+                int order = byCount ? Long.compare(b.count, a.count) : Long.compare(b.chars, a.chars);
+                return order != 0 ? order : a.path.compareTo(b.path);
+            }
+        });
+        return entries.subList(0, Math.min(topN, entries.size()));
+    }
+
+    public void log(Logger logger, String title)
+    {
+        logger.info(String.format(Locale.ENGLISH, "%s: %d values. Top paths by count:", title, paths));
+        for (Entry entry : getTopByCount()) {
+            logger.info(String.format("  %s", entry));
+        }
+        logger.info(String.format("%s: top paths by chars:", title));
+        for (Entry entry : getTopByChars()) {
+            logger.info(String.format("  %s", entry));
+        }
+    }
+
+    private static long estimate(long[][] sketch, String path)
+    {
+        long estimate = Long.MAX_VALUE;
+        for (int row = 0; row < DEPTH; row++) {
+            estimate = Math.min(estimate, sketch[row][index(path, row)]);
+        }
+        return estimate;
+    }
+
+    // MurmurHash3 of the chars of the path, seeded for each row. so paths which collide in a row rarely collide
+    // in the others, unlike rows mixed from one String#hashCode(), where paths of the same hashCode collide in all.
+    private static int index(String path, int row)
+    {
+        int h = SEEDS[row];
+        for (int i = 0; i < path.length(); i++) {
+            int k = path.charAt(i) * 0xcc9e2d51;
+            k = Integer.rotateLeft(k, 15) * 0x1b873593;
+            h ^= k;
+            h = Integer.rotateLeft(h, 13) * 5 + 0xe6546b64;
+        }
+        h ^= path.length();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h & (WIDTH - 1);
+    }
+
+    static void beginTransaction(String transactionId)
+    {
+        transactions.put(transactionId, new LinkedHashMap<String, KeyProfile>());
+    }
+
+    // merges the profile of a column of a task into its transaction, if the transaction runs in this JVM.
+    static void mergeIntoTransaction(String transactionId, String columnName, KeyProfile profile)
+    {
+        Map<String, KeyProfile> total = transactions.get(transactionId);
+        if (total != null) {
+            synchronized (total) {
+                KeyProfile columnProfile = total.get(columnName);
+                if (columnProfile == null) {
+                    columnProfile = new KeyProfile(profile.topN);
+                    total.put(columnName, columnProfile);
+                }
+                columnProfile.merge(profile);
+            }
+        }
+    }
+
+    // profiles by column name. empty if the transaction did not begin in this JVM.
+    static Map<String, KeyProfile> endTransaction(String transactionId)
+    {
+        Map<String, KeyProfile> total = transactions.remove(transactionId);
+        if (total == null) {
+            return new LinkedHashMap<>();
+        }
+        synchronized (total) {
+            return total;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+import org.embulk.filter.json_key.DocumentLimitException.Limit;
+
+import java.io.IOException;
+
+/**
+ * Counts the nesting depth and the values of a document while its tokens are read, and fails as soon as
+ * one of them is over its limit. So neither the tree engine nor the recursive visits of the streaming engine
+ * go deeper or build more than the limits allow.
+ *
+ * Values skipped by {@link #skipChildren()} are neither counted nor built.
+ */
+class LimitedJsonParser
+        extends JsonParserDelegate
+{
+    // 0 means no limit.
+    private final int maxDepth;
+    private final long maxNodes;
+    private int depth = 0;
+    private long nodes = 0;
+
+    LimitedJsonParser(JsonParser parser, int maxDepth, long maxNodes)
+    {
+        super(parser);
+        this.maxDepth = maxDepth;
+        this.maxNodes = maxNodes;
+    }
+
+    @Override
+    public JsonToken nextToken()
+            throws IOException
+    {
+        JsonToken token = delegate.nextToken();
+        if (token == null || token == JsonToken.FIELD_NAME) {
+            return token;
+        }
+
+        switch (token) {
+            case START_OBJECT:
+            case START_ARRAY:
+                depth++;
+                if (maxDepth > 0 && depth > maxDepth) {
+                    throw new DocumentLimitException(Limit.DEPTH, String.format("JSON is nested deeper than max_depth %d", maxDepth),
+                                                     getCurrentLocation());
+                }
+                break;
+            case END_OBJECT:
+            case END_ARRAY:
+                depth--;
+                return token;
+            default:
+                break;
+        }
+        nodes++;
+        if (maxNodes > 0 && nodes > maxNodes) {
+            throw new DocumentLimitException(Limit.NODES, String.format("JSON has more values than max_nodes %d", maxNodes),
+                                             getCurrentLocation());
+        }
+        return token;
+    }
+
+    // the delegate would read the next tokens of itself, without counting them.
+    @Override
+    public JsonToken nextValue()
+            throws IOException
+    {
+        JsonToken token = nextToken();
+        if (token == JsonToken.FIELD_NAME) {
+            token = nextToken();
+        }
+        return token;
+    }
+
+    @Override
+    public String nextFieldName()
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME ? getCurrentName() : null;
+    }
+
+    @Override
+    public boolean nextFieldName(SerializableString name)
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME && name.getValue().equals(getCurrentName());
+    }
+
+    @Override
+    public JsonParser skipChildren()
+            throws IOException
+    {
+        JsonToken token = getCurrentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            delegate.skipChildren();
+            depth--;
+        }
+        return this;
+    }
+}
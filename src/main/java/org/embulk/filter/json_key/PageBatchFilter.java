@@ -0,0 +1,75 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.base.Throwables;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+
+import java.io.IOException;
+
+/**
+ * Filters the records of a page in three passes: all records are read into one array per column,
+ * each filtered column is passed to {@link JsonKeyFilter#doFilterBatch} at once, then all records are written.
+ * So each pass stays in one of the PageReader, Jackson and the PageBuilder, instead of switching between them
+ * for each record.
+ *
+ * The records are held in a {@link RecordBuffer}, reused across pages.
+ */
+class PageBatchFilter
+{
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final PageReader pageReader;
+    private final Schema outputSchema;
+    // indexed by the input column index, and null for columns not to be filtered.
+    private final JsonKeyFilter[] filters;
+    // output indexes of the extract_columns of each filtered column, indexed by the input column index.
+    private final int[][] extractColumnIndexes;
+    // the arrays of those columns, set again for each page as the arrays may have grown.
+    private final Object[][][] extractedColumns;
+    private final RecordBuffer records;
+
+    PageBatchFilter(PageReader pageReader, PageBuilder pageBuilder, Schema outputSchema, JsonKeyFilter[] filters)
+    {
+        this.pageReader = pageReader;
+        this.outputSchema = outputSchema;
+        this.filters = filters;
+        this.records = new RecordBuffer(pageReader, pageBuilder, outputSchema, INITIAL_CAPACITY);
+        this.extractColumnIndexes = new int[filters.length][];
+        this.extractedColumns = new Object[filters.length][][];
+        for (int column = 0; column < filters.length; column++) {
+            if (filters[column] != null) {
+                extractColumnIndexes[column] = filters[column].getExtractor().lookupColumnIndexes(outputSchema);
+                extractedColumns[column] = new Object[extractColumnIndexes[column].length][];
+            }
+        }
+    }
+
+    // filters all records of the current page of the PageReader, and returns the number of them.
+    public int filterPage()
+    {
+        while (pageReader.nextRecord()) {
+            records.read();
+        }
+        int recordCount = records.getRecordCount();
+
+        for (int column = 0; column < filters.length; column++) {
+            if (filters[column] == null) {
+                continue;
+            }
+            Object[][] extracted = extractedColumns[column];
+            for (int j = 0; j < extracted.length; j++) {
+                extracted[j] = records.getColumn(extractColumnIndexes[column][j]);
+            }
+            try {
+                filters[column].doFilterBatch(records.getColumn(column), recordCount, outputSchema.getColumnType(column), extracted);
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        records.write();
+        return recordCount;
+    }
+}
@@ -0,0 +1,141 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.embulk.spi.Exec;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.Type;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Filters records on a bounded pool of worker threads, keeping the input order.
+ *
+ * Records are read from the PageReader into a {@link RecordBuffer}, across pages. When the batch is full
+ * (or at finish), it is split into one contiguous chunk per worker; each worker owns its own set of JsonKeyFilter.
+ * Then the records are written to the PageBuilder in the order they were read.
+ */
+class ParallelRecordFilter
+{
+    private static final int RECORDS_PER_WORKER = 64;
+
+    private final Logger logger = Exec.getLogger(ParallelRecordFilter.class);
+    private final Schema outputSchema;
+    private final JsonKeyFilter[][] workerFilters;
+    // output indexes of the extract_columns of each filtered column, indexed by the column index.
+    private final int[][] extractColumnIndexes;
+    private final ExecutorService executor;
+    private final int batchSize;
+    private final RecordBuffer records;
+
+    // workerFilters are indexed by [worker][column index], and null for columns not to be filtered.
+    ParallelRecordFilter(PageReader pageReader, PageBuilder pageBuilder, Schema outputSchema, JsonKeyFilter[][] workerFilters)
+    {
+        this.outputSchema = outputSchema;
+        this.workerFilters = workerFilters;
+        this.extractColumnIndexes = new int[workerFilters[0].length][];
+        for (int column = 0; column < extractColumnIndexes.length; column++) {
+            if (workerFilters[0][column] != null) {
+                extractColumnIndexes[column] = workerFilters[0][column].getExtractor().lookupColumnIndexes(outputSchema);
+            }
+        }
+        this.executor = Executors.newFixedThreadPool(workerFilters.length,
+                                                     new ThreadFactoryBuilder()
+                                                             .setNameFormat("embulk-filter-json_key-%d")
+                                                             .setDaemon(true)
+                                                             .build());
+        this.batchSize = workerFilters.length * RECORDS_PER_WORKER;
+        this.records = new RecordBuffer(pageReader, pageBuilder, outputSchema, batchSize);
+    }
+
+    // reads the current record of the PageReader.
+    public void addRecord()
+    {
+        records.read();
+        if (records.getRecordCount() == batchSize) {
+            flush();
+        }
+    }
+
+    public void flush()
+    {
+        int recordCount = records.getRecordCount();
+        if (recordCount == 0) {
+            return;
+        }
+
+        int chunkSize = (recordCount + workerFilters.length - 1) / workerFilters.length;
+        List<Future<Void>> futures = new ArrayList<>(workerFilters.length);
+        for (int worker = 0; worker * chunkSize < recordCount; worker++) {
+            int start = worker * chunkSize;
+            futures.add(executor.submit(new FilterChunk(workerFilters[worker], start, Math.min(start + chunkSize, recordCount))));
+        }
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            }
+            catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw Throwables.propagate(e);
+            }
+            catch (ExecutionException e) {
+                throw Throwables.propagate(e.getCause());
+            }
+        }
+
+        records.write();
+    }
+
+    public void close()
+    {
+        executor.shutdownNow();
+    }
+
+    private class FilterChunk
+            implements Callable<Void>
+    {
+        private final JsonKeyFilter[] filters;
+        private final int start;
+        private final int end;
+
+        FilterChunk(JsonKeyFilter[] filters, int start, int end)
+        {
+            this.filters = filters;
+            this.start = start;
+            this.end = end;
+        }
+
+        // a record which cannot be parsed fails the task, same as RecordCopyPlan.
+        @Override
+        public Void call()
+                throws IOException
+        {
+            for (int i = start; i < end; i++) {
+                for (int column = 0; column < filters.length; column++) {
+                    if (filters[column] == null) {
+                        continue;
+                    }
+                    Type outputType = outputSchema.getColumnType(column);
+                    Object[] values = records.getColumn(column);
+                    values[i] = filters[column].doFilter(values[i], outputType);
+                    ColumnExtractor extractor = filters[column].getExtractor();
+                    int[] extractIndexes = extractColumnIndexes[column];
+                    for (int j = 0; j < extractIndexes.length; j++) {
+                        records.getColumn(extractIndexes[j])[i] = extractor.get(j);
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.JsonParserDelegate;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Adds the path of each value to a {@link KeyProfile} while the tokens of a document are read, with the chars
+ * from its key, or from the value itself in arrays, up to the next token. So the chars of a key include
+ * the comma after it, which are the chars dropping it would save.
+ *
+ * A value skipped by {@link #skipChildren()} is added as a whole, without the paths inside it.
+ */
+class ProfilingJsonParser
+        extends JsonParserDelegate
+{
+    private final KeyProfile profile;
+    private final String delimiter;
+    // the objects and arrays being read: the path of each, null for the document, where it starts,
+    // and whether it is an array.
+    private String[] paths = new String[16];
+    private long[] starts = new long[16];
+    private boolean[] arrays = new boolean[16];
+    private int depth = 0;
+    // the path of the last field name, and where the name starts.
+    private String fieldPath;
+    private long fieldStart;
+    // a value which has been read, to be added when the next token tells where it ends. null if none.
+    private String endedPath = null;
+    private long endedStart;
+
+    ProfilingJsonParser(JsonParser parser, KeyProfile profile, String delimiter)
+    {
+        super(parser);
+        this.profile = profile;
+        this.delimiter = delimiter;
+    }
+
+    @Override
+    public JsonToken nextToken()
+            throws IOException
+    {
+        JsonToken token = delegate.nextToken();
+        if (token == null) {
+            endedPath = null;
+            return null;
+        }
+        long offset = delegate.getTokenLocation().getCharOffset();
+        if (endedPath != null) {
+            profile.add(endedPath, offset - endedStart);
+            endedPath = null;
+        }
+
+        switch (token) {
+            case FIELD_NAME:
+                fieldPath = childPath(delegate.getCurrentName());
+                fieldStart = offset;
+                break;
+            case END_OBJECT:
+            case END_ARRAY:
+                end();
+                break;
+            default:
+                start(token, offset);
+                break;
+        }
+        return token;
+    }
+
+    private void start(JsonToken token, long offset)
+    {
+        String path;
+        long start;
+        if (depth == 0) {
+            path = null;
+            start = offset;
+        }
+        else if (arrays[depth - 1]) {
+            path = childPath(KeyPathMatcher.ANY_SEGMENT);
+            start = offset;
+        }
+        else {
+            path = fieldPath;
+            start = fieldStart;
+        }
+
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            if (depth == paths.length) {
+                paths = Arrays.copyOf(paths, depth * 2);
+                starts = Arrays.copyOf(starts, depth * 2);
+                arrays = Arrays.copyOf(arrays, depth * 2);
+            }
+            paths[depth] = path;
+            starts[depth] = start;
+            arrays[depth] = token == JsonToken.START_ARRAY;
+            depth++;
+        }
+        else if (path != null) {
+            endedPath = path;
+            endedStart = start;
+        }
+    }
+
+    private void end()
+    {
+        depth--;
+        if (paths[depth] != null) {
+            endedPath = paths[depth];
+            endedStart = starts[depth];
+        }
+    }
+
+    private String childPath(String name)
+    {
+        String parent = paths[depth - 1];
+        return parent == null ? name : parent + delimiter + name;
+    }
+
+    // the delegate would read the next tokens of itself, without adding them.
+    @Override
+    public JsonToken nextValue()
+            throws IOException
+    {
+        JsonToken token = nextToken();
+        if (token == JsonToken.FIELD_NAME) {
+            token = nextToken();
+        }
+        return token;
+    }
+
+    @Override
+    public String nextFieldName()
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME ? getCurrentName() : null;
+    }
+
+    @Override
+    public boolean nextFieldName(SerializableString name)
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME && name.getValue().equals(getCurrentName());
+    }
+
+    @Override
+    public JsonParser skipChildren()
+            throws IOException
+    {
+        JsonToken token = getCurrentToken();
+        if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+            delegate.skipChildren();
+            end();
+        }
+        return this;
+    }
+}
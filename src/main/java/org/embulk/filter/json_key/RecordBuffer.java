@@ -0,0 +1,141 @@
+package org.embulk.filter.json_key;
+
+import org.embulk.spi.Column;
+import org.embulk.spi.ColumnVisitor;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.time.Timestamp;
+import org.msgpack.value.Value;
+
+import java.util.Arrays;
+
+/**
+ * Records read from a PageReader and held to be filtered before they are written to a PageBuilder,
+ * for {@link PageBatchFilter} and {@link ParallelRecordFilter}.
+ *
+ * Values are held in one array per output column, indexed by [output column index][record], so the columns of
+ * extract_columns follow the input columns. A value is a Boolean, Long, Double, String, Timestamp or Value,
+ * or null. The arrays are reused after {@link #write}, and grow to the most records held at once.
+ */
+class RecordBuffer
+{
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    private final Schema inputSchema;
+    private final Object[][] columns;
+    private int recordCount = 0;
+    private final RecordReader recordReader = new RecordReader();
+
+    RecordBuffer(PageReader pageReader, PageBuilder pageBuilder, Schema outputSchema, int initialCapacity)
+    {
+        this.pageReader = pageReader;
+        this.pageBuilder = pageBuilder;
+        this.inputSchema = pageReader.getSchema();
+        this.columns = new Object[outputSchema.getColumnCount()][initialCapacity];
+    }
+
+    public int getRecordCount()
+    {
+        return recordCount;
+    }
+
+    // the values of a column. the array is replaced when the buffer grows, so it is valid until the next read().
+    public Object[] getColumn(int index)
+    {
+        return columns[index];
+    }
+
+    // reads the current record of the PageReader.
+    public void read()
+    {
+        if (recordCount == columns[0].length) {
+            for (int column = 0; column < columns.length; column++) {
+                columns[column] = Arrays.copyOf(columns[column], columns[column].length * 2);
+            }
+        }
+        inputSchema.visitColumns(recordReader);
+        recordCount++;
+    }
+
+    // writes all records in the order they were read, and empties the buffer.
+    public void write()
+    {
+        for (int record = 0; record < recordCount; record++) {
+            for (int column = 0; column < columns.length; column++) {
+                setValue(pageBuilder, column, columns[column][record]);
+            }
+            pageBuilder.addRecord();
+        }
+        for (Object[] values : columns) {
+            Arrays.fill(values, 0, recordCount, null);
+        }
+        recordCount = 0;
+    }
+
+    // sets a value held by the buffer or taken by a ColumnExtractor, by its class.
+    static void setValue(PageBuilder pageBuilder, int index, Object value)
+    {
+        if (value == null) {
+            pageBuilder.setNull(index);
+        }
+        else if (value instanceof Boolean) {
+            pageBuilder.setBoolean(index, (Boolean) value);
+        }
+        else if (value instanceof Long) {
+            pageBuilder.setLong(index, (Long) value);
+        }
+        else if (value instanceof Double) {
+            pageBuilder.setDouble(index, (Double) value);
+        }
+        else if (value instanceof String) {
+            pageBuilder.setString(index, (String) value);
+        }
+        else if (value instanceof Timestamp) {
+            pageBuilder.setTimestamp(index, (Timestamp) value);
+        }
+        else {
+            pageBuilder.setJson(index, (Value) value);
+        }
+    }
+
+    private class RecordReader
+            implements ColumnVisitor
+    {
+        @Override
+        public void booleanColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getBoolean(column);
+        }
+
+        @Override
+        public void longColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getLong(column);
+        }
+
+        @Override
+        public void doubleColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getDouble(column);
+        }
+
+        @Override
+        public void stringColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getString(column);
+        }
+
+        @Override
+        public void timestampColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getTimestamp(column);
+        }
+
+        @Override
+        public void jsonColumn(Column column)
+        {
+            columns[column.getIndex()][recordCount] = pageReader.isNull(column) ? null : pageReader.getJson(column);
+        }
+    }
+}
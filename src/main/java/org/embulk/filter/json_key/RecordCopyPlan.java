@@ -0,0 +1,475 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.base.Throwables;
+import org.embulk.spi.Column;
+import org.embulk.spi.PageBuilder;
+import org.embulk.spi.PageReader;
+import org.embulk.spi.Schema;
+import org.embulk.spi.type.BooleanType;
+import org.embulk.spi.type.DoubleType;
+import org.embulk.spi.type.JsonType;
+import org.embulk.spi.type.LongType;
+import org.embulk.spi.type.StringType;
+import org.embulk.spi.type.TimestampType;
+import org.embulk.spi.type.Type;
+import org.msgpack.value.Value;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Copies the current record of a PageReader to a PageBuilder, filtering the JSON columns.
+ *
+ * The plan is compiled once per schema: each column gets a copier for its input and output types,
+ * which reads and writes by the column index. So copying a record is a loop over an array,
+ * without type checks or lookups by column. The columns of extract_columns, which follow the input columns,
+ * are written by the copier of the column they are extracted from.
+ *
+ * With explode_path, the exploded column drives the copy: the other columns are read and filtered once for
+ * the input record, and their outputs are written again for each element.
+ */
+class RecordCopyPlan
+{
+    private final PageReader pageReader;
+    private final PageBuilder pageBuilder;
+    // all columns but the exploded one.
+    private final ColumnCopier[] copiers;
+    // null without explode_path.
+    private final ExplodeCopier explodeCopier;
+
+    // filters are indexed by the column index, and null for columns not to be filtered.
+    RecordCopyPlan(PageReader pageReader, PageBuilder pageBuilder, Schema outputSchema, JsonKeyFilter[] filters)
+    {
+        this.pageReader = pageReader;
+        this.pageBuilder = pageBuilder;
+        Schema inputSchema = pageReader.getSchema();
+        List<ColumnCopier> copiers = new ArrayList<>();
+        ExplodeCopier explodeCopier = null;
+        for (Column inputColumn : inputSchema.getColumns()) {
+            int index = inputColumn.getIndex();
+            JsonKeyFilter filter = filters[index];
+            if (filter != null && filter.isExploding()) {
+                explodeCopier = new ExplodeCopier(index, inputColumn.getType(), outputSchema.getColumnType(index), filter,
+                                                  filter.getExtractor().lookupColumnIndexes(outputSchema));
+            }
+            else {
+                copiers.add(newCopier(index, inputColumn.getType(), outputSchema.getColumnType(index), filter, outputSchema));
+            }
+        }
+        this.copiers = copiers.toArray(new ColumnCopier[copiers.size()]);
+        this.explodeCopier = explodeCopier;
+    }
+
+    public void copyRecord()
+    {
+        if (explodeCopier != null) {
+            explodeCopier.copy();
+            return;
+        }
+        for (ColumnCopier copier : copiers) {
+            copier.copy();
+        }
+        pageBuilder.addRecord();
+    }
+
+    private ColumnCopier newCopier(int index, Type inputType, Type outputType, JsonKeyFilter filter, Schema outputSchema)
+    {
+        if (filter != null) {
+            int[] extractIndexes = filter.getExtractor().lookupColumnIndexes(outputSchema);
+            if (inputType instanceof JsonType) {
+                if (outputType instanceof JsonType) {
+                    return new JsonToJsonFilter(index, filter, extractIndexes);
+                }
+                return new JsonToStringFilter(index, filter, extractIndexes);
+            }
+            if (outputType instanceof JsonType) {
+                return new StringToJsonFilter(index, filter, extractIndexes);
+            }
+            return new StringToStringFilter(index, filter, extractIndexes);
+        }
+
+        if (inputType instanceof BooleanType) {
+            return new BooleanCopier(index);
+        }
+        else if (inputType instanceof LongType) {
+            return new LongCopier(index);
+        }
+        else if (inputType instanceof DoubleType) {
+            return new DoubleCopier(index);
+        }
+        else if (inputType instanceof StringType) {
+            return new StringCopier(index);
+        }
+        else if (inputType instanceof TimestampType) {
+            return new TimestampCopier(index);
+        }
+        else if (inputType instanceof JsonType) {
+            return new JsonCopier(index);
+        }
+        throw new IllegalArgumentException(String.format("Unsupported type %s of column %d", inputType, index));
+    }
+
+    private abstract static class ColumnCopier
+    {
+        protected final int index;
+
+        ColumnCopier(int index)
+        {
+            this.index = index;
+        }
+
+        // reads the value of the current record, and filters it. copiers which do not filter read in write().
+        void read()
+        {
+        }
+
+        // writes the value of the current record into the PageBuilder.
+        abstract void write();
+
+        void copy()
+        {
+            read();
+            write();
+        }
+    }
+
+    private abstract class FilterCopier
+            extends ColumnCopier
+    {
+        protected final JsonKeyFilter filter;
+        // output indexes of the extract_columns of the filter.
+        private final int[] extractIndexes;
+
+        FilterCopier(int index, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index);
+            this.filter = filter;
+            this.extractIndexes = extractIndexes;
+        }
+
+        // writes the values taken by the last doFilter of the filter.
+        protected void copyExtracted()
+        {
+            ColumnExtractor extractor = filter.getExtractor();
+            for (int i = 0; i < extractIndexes.length; i++) {
+                RecordBuffer.setValue(pageBuilder, extractIndexes[i], extractor.get(i));
+            }
+        }
+    }
+
+    private class BooleanCopier
+            extends ColumnCopier
+    {
+        BooleanCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setBoolean(index, pageReader.getBoolean(index));
+            }
+        }
+    }
+
+    private class LongCopier
+            extends ColumnCopier
+    {
+        LongCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setLong(index, pageReader.getLong(index));
+            }
+        }
+    }
+
+    private class DoubleCopier
+            extends ColumnCopier
+    {
+        DoubleCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setDouble(index, pageReader.getDouble(index));
+            }
+        }
+    }
+
+    private class StringCopier
+            extends ColumnCopier
+    {
+        StringCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setString(index, pageReader.getString(index));
+            }
+        }
+    }
+
+    private class TimestampCopier
+            extends ColumnCopier
+    {
+        TimestampCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setTimestamp(index, pageReader.getTimestamp(index));
+            }
+        }
+    }
+
+    private class JsonCopier
+            extends ColumnCopier
+    {
+        JsonCopier(int index)
+        {
+            super(index);
+        }
+
+        @Override
+        void write()
+        {
+            if (pageReader.isNull(index)) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setJson(index, pageReader.getJson(index));
+            }
+        }
+    }
+
+    private class StringToStringFilter
+            extends FilterCopier
+    {
+        private String output;
+
+        StringToStringFilter(int index, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index, filter, extractIndexes);
+        }
+
+        @Override
+        void read()
+        {
+            try {
+                output = filter.doFilter(pageReader.isNull(index) ? null : pageReader.getString(index));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        void write()
+        {
+            if (output == null) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setString(index, output);
+            }
+            copyExtracted();
+        }
+    }
+
+    private class StringToJsonFilter
+            extends FilterCopier
+    {
+        private Value output;
+
+        StringToJsonFilter(int index, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index, filter, extractIndexes);
+        }
+
+        @Override
+        void read()
+        {
+            try {
+                output = filter.doFilterAsValue(pageReader.isNull(index) ? null : pageReader.getString(index));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        void write()
+        {
+            if (output == null) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setJson(index, output);
+            }
+            copyExtracted();
+        }
+    }
+
+    private class JsonToJsonFilter
+            extends FilterCopier
+    {
+        private Value output;
+
+        JsonToJsonFilter(int index, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index, filter, extractIndexes);
+        }
+
+        @Override
+        void read()
+        {
+            // null is passed to the filter too, so that the extracted values are cleared.
+            output = filter.doFilter(pageReader.isNull(index) ? null : pageReader.getJson(index));
+        }
+
+        @Override
+        void write()
+        {
+            if (output == null) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setJson(index, output);
+            }
+            copyExtracted();
+        }
+    }
+
+    private class JsonToStringFilter
+            extends FilterCopier
+    {
+        private String output;
+
+        JsonToStringFilter(int index, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index, filter, extractIndexes);
+        }
+
+        @Override
+        void read()
+        {
+            try {
+                output = filter.doFilterAsString(pageReader.isNull(index) ? null : pageReader.getJson(index));
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        @Override
+        void write()
+        {
+            if (output == null) {
+                pageBuilder.setNull(index);
+            }
+            else {
+                pageBuilder.setString(index, output);
+            }
+            copyExtracted();
+        }
+    }
+
+    private class ExplodeCopier
+            extends FilterCopier
+            implements JsonKeyFilter.ExplodedOutput
+    {
+        private final boolean jsonInput;
+        private final Type outputType;
+        // the element being written.
+        private Object output;
+
+        ExplodeCopier(int index, Type inputType, Type outputType, JsonKeyFilter filter, int[] extractIndexes)
+        {
+            super(index, filter, extractIndexes);
+            this.jsonInput = inputType instanceof JsonType;
+            this.outputType = outputType;
+        }
+
+        @Override
+        void copy()
+        {
+            // the other columns are filtered once, however many records the array becomes.
+            for (ColumnCopier copier : copiers) {
+                copier.read();
+            }
+            Object value = null;
+            if (!pageReader.isNull(index)) {
+                value = jsonInput ? pageReader.getJson(index) : pageReader.getString(index);
+            }
+            try {
+                filter.doExplode(value, outputType, this);
+            }
+            catch (IOException e) {
+                throw Throwables.propagate(e);
+            }
+        }
+
+        // writes a record for an element.
+        @Override
+        public void add(Object output)
+        {
+            this.output = output;
+            for (ColumnCopier copier : copiers) {
+                copier.write();
+            }
+            write();
+            pageBuilder.addRecord();
+        }
+
+        @Override
+        void write()
+        {
+            if (output == null) {
+                pageBuilder.setNull(index);
+            }
+            else if (output instanceof Value) {
+                pageBuilder.setJson(index, (Value) output);
+            }
+            else {
+                pageBuilder.setString(index, (String) output);
+            }
+            copyExtracted();
+        }
+    }
+}
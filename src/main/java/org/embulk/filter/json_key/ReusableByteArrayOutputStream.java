@@ -0,0 +1,22 @@
+package org.embulk.filter.json_key;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * A {@link ByteArrayOutputStream} whose buffer can be read without the copy made by {@link #toByteArray()}.
+ * {@link #reset()} keeps the buffer, so it is reused across records.
+ */
+class ReusableByteArrayOutputStream
+        extends ByteArrayOutputStream
+{
+    ReusableByteArrayOutputStream(int initialCapacity)
+    {
+        super(initialCapacity);
+    }
+
+    // valid up to size().
+    public byte[] getBuffer()
+    {
+        return buf;
+    }
+}
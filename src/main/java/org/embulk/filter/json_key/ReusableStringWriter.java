@@ -0,0 +1,77 @@
+package org.embulk.filter.json_key;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * A growable char buffer reused across records.
+ * Unlike {@link java.io.StringWriter}, it is not synchronized and {@link #reset()} keeps the buffer,
+ * so the only allocation per record is the String returned by {@link #toString()}.
+ */
+class ReusableStringWriter
+        extends Writer
+{
+    private char[] buffer;
+    private int length = 0;
+
+    ReusableStringWriter(int initialCapacity)
+    {
+        this.buffer = new char[initialCapacity];
+    }
+
+    public void reset()
+    {
+        length = 0;
+    }
+
+    public int length()
+    {
+        return length;
+    }
+
+    @Override
+    public void write(int c)
+    {
+        ensureCapacity(length + 1);
+        buffer[length++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int len)
+    {
+        ensureCapacity(length + len);
+        System.arraycopy(chars, offset, buffer, length, len);
+        length += len;
+    }
+
+    @Override
+    public void write(String str, int offset, int len)
+    {
+        ensureCapacity(length + len);
+        str.getChars(offset, offset + len, buffer, length);
+        length += len;
+    }
+
+    @Override
+    public void flush()
+    {
+    }
+
+    @Override
+    public void close()
+    {
+    }
+
+    @Override
+    public String toString()
+    {
+        return new String(buffer, 0, length);
+    }
+
+    private void ensureCapacity(int capacity)
+    {
+        if (capacity > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(capacity, buffer.length * 2));
+        }
+    }
+}
@@ -0,0 +1,83 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.core.SerializableString;
+import com.fasterxml.jackson.core.util.JsonParserSequence;
+
+import java.io.IOException;
+
+/**
+ * Reads the tokens of a buffered head of a value, then the rest of the value from the input it was read from.
+ * The input must be on the last token copied into the head.
+ *
+ * Unlike {@link JsonParserSequence}, which hands skipChildren() and nextValue() to the current delegate,
+ * a value started in the head is skipped or read on into the input.
+ */
+class SplicedJsonParser
+        extends JsonParserSequence
+{
+    SplicedJsonParser(JsonParser head, JsonParser input)
+    {
+        super(new JsonParser[] {head, input});
+    }
+
+    // the input is the last parser.
+    private boolean inInput()
+    {
+        return _nextParser >= _parsers.length;
+    }
+
+    @Override
+    public JsonToken nextValue()
+            throws IOException
+    {
+        JsonToken token = nextToken();
+        if (token == JsonToken.FIELD_NAME) {
+            token = nextToken();
+        }
+        return token;
+    }
+
+    @Override
+    public String nextFieldName()
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME ? getCurrentName() : null;
+    }
+
+    @Override
+    public boolean nextFieldName(SerializableString name)
+            throws IOException
+    {
+        return nextToken() == JsonToken.FIELD_NAME && name.getValue().equals(getCurrentName());
+    }
+
+    @Override
+    public JsonParser skipChildren()
+            throws IOException
+    {
+        if (inInput()) {
+            delegate.skipChildren();
+            return this;
+        }
+        JsonToken token = getCurrentToken();
+        if (token != JsonToken.START_OBJECT && token != JsonToken.START_ARRAY) {
+            return this;
+        }
+        int open = 1;
+        while (open > 0) {
+            token = nextToken();
+            if (token == null) {
+                break;
+            }
+            else if (token == JsonToken.START_OBJECT || token == JsonToken.START_ARRAY) {
+                open++;
+            }
+            else if (token == JsonToken.END_OBJECT || token == JsonToken.END_ARRAY) {
+                open--;
+            }
+        }
+        return this;
+    }
+}
@@ -0,0 +1,263 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.NullNode;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+import org.embulk.filter.json_key.KeyPathMatcher.AddedKey;
+import org.embulk.filter.json_key.KeyPathMatcher.MovedKey;
+import org.embulk.filter.json_key.KeyPathMatcher.State;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Rewrites a JSON document token by token, piping a {@link JsonParser} into a {@link JsonGenerator}
+ * without building a JsonNode tree. Dropped values are skipped with {@link JsonParser#skipChildren()}
+ * and added keys are written just before the {@code END_OBJECT} of their parent.
+ *
+ * Array indexes in keys are matched against the original positions of the elements.
+ * Only the values taken by extract_columns and rename_keys are read into trees, and only the tokens before
+ * the paths of {@code when} predicates are buffered. Moved values are written at the end of the object of
+ * their new key, so the object must enclose the old key (see {@link KeyPathMatcher#hasOnlyUpwardMoves()}).
+ */
+class StreamingKeyFilter
+{
+    private final Logger logger = Exec.getLogger(StreamingKeyFilter.class);
+    private final ObjectMapper mapper;
+    private final ConditionalMatcher matcher;
+    private final FilterMetrics metrics;
+    private final ColumnExtractor extractor;
+    // null without key_case.
+    private final KeyCaseConverter keyCase;
+    private final IntStack writtenFlags = new IntStack();
+    // the value which was at the new key of each rename_keys, held until the end of its object
+    // in case the value of the old key comes after it, and the fields which follow it. null if none.
+    private final TokenBuffer[] heldValues;
+    private final TokenBuffer[] heldFields;
+
+    // parsing, filtering and writing are interleaved, so the whole time is counted as transform.
+    StreamingKeyFilter(ObjectMapper mapper, ConditionalMatcher matcher, FilterMetrics metrics, ColumnExtractor extractor,
+                       KeyCaseConverter keyCase)
+    {
+        this.mapper = mapper;
+        this.matcher = matcher;
+        this.metrics = metrics;
+        this.extractor = extractor;
+        this.keyCase = keyCase;
+        this.heldValues = new TokenBuffer[matcher.getAllRulesMatcher().getMoveTargets().size()];
+        this.heldFields = new TokenBuffer[heldValues.length];
+    }
+
+    public void doFilter(JsonParser parser, JsonGenerator generator)
+            throws IOException
+    {
+        long start = System.nanoTime();
+        writtenFlags.clear();
+        Arrays.fill(heldValues, null);
+        Arrays.fill(heldFields, null);
+        // the value at the current token, or the first value of the input.
+        if (parser.getCurrentToken() == null && parser.nextToken() == null) {
+            generator.writeNull();
+        }
+        else if (!matcher.hasPredicates()) {
+            filterValue(parser, generator, matcher.getAllRulesMatcher().getRoot());
+        }
+        else {
+            // only the tokens read until the when predicates are decided are buffered, then the rest is read from the input.
+            TokenBuffer buffer = new TokenBuffer(mapper, false);
+            State root = matcher.scan(parser, buffer).getRoot();
+            JsonParser splicedParser = new SplicedJsonParser(buffer.asParser(), parser);
+            splicedParser.nextToken();
+            filterValue(splicedParser, generator, root);
+        }
+        metrics.transformNanos += System.nanoTime() - start;
+    }
+
+    // the parser must be positioned on the first token of the value.
+    private void filterValue(JsonParser parser, JsonGenerator generator, State state)
+            throws IOException
+    {
+        JsonToken token = parser.getCurrentToken();
+        if (token == JsonToken.START_OBJECT && state.hasChildren()) {
+            filterObject(parser, generator, state);
+        }
+        else if (token == JsonToken.START_ARRAY && state.hasChildren()) {
+            filterArray(parser, generator, state);
+        }
+        else {
+            copy(parser, generator);
+        }
+    }
+
+    private void filterObject(JsonParser parser, JsonGenerator generator, State state)
+            throws IOException
+    {
+        List<AddedKey> addedKeys = state.getAddedKeys();
+        // flags of the added keys already written, on a stack shared by the nested objects.
+        int written = writtenFlags.push(addedKeys.size());
+        generator.writeStartObject();
+        // after a value is held, the fields after it are buffered too, so that it can be written back at its place.
+        JsonGenerator fieldGenerator = generator;
+        // move indexes of the values held in this object, in their order. null if none.
+        List<Integer> heldIndexes = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            parser.nextToken();
+            State child = state.getChild(name);
+            if (child == null) {
+                fieldGenerator.writeFieldName(convertKey(name));
+                copy(parser, fieldGenerator);
+                continue;
+            }
+            JsonParser valueParser = child.hasInputToExtract() ? extract(parser, child) : parser;
+            JsonGenerator valueGenerator = fieldGenerator;
+            int moveIndex = child.getMoveIndex();
+            if (moveIndex >= 0 && !child.isDropped()) {
+                if (extractor.getMoved(moveIndex) != null) {
+                    // replaced by the moved value, written at the end of this object.
+                    valueParser.skipChildren();
+                    continue;
+                }
+                valueGenerator = heldValues[moveIndex] = new TokenBuffer(mapper, false);
+                fieldGenerator = heldFields[moveIndex] = new TokenBuffer(mapper, false);
+                if (heldIndexes == null) {
+                    heldIndexes = new ArrayList<>();
+                }
+                heldIndexes.add(moveIndex);
+            }
+            if (child.isDropped()) {
+                valueParser.skipChildren();
+                metrics.droppedKeys++;
+            }
+            else if (child.isAdded()) {
+                valueParser.skipChildren();
+                valueGenerator.writeFieldName(convertKey(name));
+                writeAddValue(valueGenerator, child.getAddJson(), child.getAddValue());
+                writtenFlags.set(written + state.getAddIndex(name), 1);
+                metrics.addedKeys++;
+            }
+            else {
+                valueGenerator.writeFieldName(convertKey(name));
+                filterValue(valueParser, valueGenerator, child);
+            }
+        }
+
+        if (heldIndexes != null) {
+            // a held value stays at its place unless a moved value replaces it, as with the tree engine.
+            for (int moveIndex : heldIndexes) {
+                if (extractor.getMoved(moveIndex) == null) {
+                    heldValues[moveIndex].serialize(generator);
+                }
+                heldFields[moveIndex].serialize(generator);
+                heldValues[moveIndex] = null;
+                heldFields[moveIndex] = null;
+            }
+        }
+
+        for (MovedKey movedKey : state.getMovedKeys()) {
+            JsonNode moved = (JsonNode) extractor.getMoved(movedKey.getIndex());
+            if (moved != null) {
+                generator.writeFieldName(convertKey(movedKey.getName()));
+                if (keyCase != null) {
+                    keyCase.convertKeys(moved);
+                }
+                generator.writeTree(moved);
+                int addIndex = state.getAddIndex(movedKey.getName());
+                if (addIndex >= 0) {
+                    writtenFlags.set(written + addIndex, 1);
+                }
+                metrics.movedKeys++;
+            }
+        }
+
+        for (int i = 0; i < addedKeys.size(); i++) {
+            if (writtenFlags.get(written + i) == 0) {
+                AddedKey addedKey = addedKeys.get(i);
+                generator.writeFieldName(convertKey(addedKey.getName()));
+                writeAddValue(generator, addedKey.getJson(), addedKey.getValue());
+                metrics.addedKeys++;
+            }
+        }
+        writtenFlags.pop(written);
+        generator.writeEndObject();
+    }
+
+    // TODO: cannot add not existing index, same as the tree engine.
+    private void filterArray(JsonParser parser, JsonGenerator generator, State state)
+            throws IOException
+    {
+        generator.writeStartArray();
+        for (int index = 0; parser.nextToken() != JsonToken.END_ARRAY; index++) {
+            State child = state.getChild(index);
+            if (child == null) {
+                copy(parser, generator);
+                continue;
+            }
+            JsonParser valueParser = child.hasInputToExtract() ? extract(parser, child) : parser;
+            if (child.isDropped()) {
+                valueParser.skipChildren();
+                metrics.droppedKeys++;
+            }
+            else if (child.isAdded()) {
+                valueParser.skipChildren();
+                writeAddValue(generator, child.getAddJson(), child.getAddValue());
+                metrics.addedKeys++;
+            }
+            else {
+                filterValue(valueParser, generator, child);
+            }
+        }
+        generator.writeEndArray();
+    }
+
+    // reads the value for extract_columns into a tree, and returns a parser over the tree positioned on its first token.
+    private JsonParser extract(JsonParser parser, State child)
+            throws IOException
+    {
+        JsonNode node = mapper.readTree(parser);
+        if (node == null) {
+            node = NullNode.getInstance();
+        }
+        extractor.extract(child, node);
+        JsonParser valueParser = mapper.treeAsTokens(node);
+        valueParser.nextToken();
+        return valueParser;
+    }
+
+    private String convertKey(String name)
+    {
+        return keyCase == null ? name : keyCase.convert(name);
+    }
+
+    private void copy(JsonParser parser, JsonGenerator generator)
+            throws IOException
+    {
+        if (keyCase == null) {
+            generator.copyCurrentStructure(parser);
+        }
+        else {
+            keyCase.copy(parser, generator);
+        }
+    }
+
+    // added values are spliced as JSON text serialized at open. TokenBuffer cannot hold raw text
+    // to be read as tokens again, and Smile or CBOR cannot hold JSON text, so the tree is written into them instead.
+    private static void writeAddValue(JsonGenerator generator, String json, JsonNode tree)
+            throws IOException
+    {
+        if (generator instanceof TokenBuffer || generator.canWriteBinaryNatively()) {
+            generator.writeTree(tree);
+        }
+        else {
+            generator.writeRawValue(json);
+        }
+    }
+}
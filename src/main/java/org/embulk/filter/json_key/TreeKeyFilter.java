@@ -0,0 +1,247 @@
+package org.embulk.filter.json_key;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.primitives.Ints;
+import org.embulk.filter.json_key.KeyPathMatcher.AddedKey;
+import org.embulk.filter.json_key.KeyPathMatcher.State;
+import org.embulk.spi.Exec;
+import org.slf4j.Logger;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads a JSON document into a JsonNode tree, edits it in place and writes it again.
+ * The tree is visited once, following the states of the {@link KeyPathMatcher} selected for it.
+ * Values of rename_keys are then set at their new keys, and keys are converted for key_case in one more visit.
+ */
+class TreeKeyFilter
+{
+    private final Logger logger = Exec.getLogger(TreeKeyFilter.class);
+    private final ObjectMapper mapper;
+    private final ConditionalMatcher matcher;
+    private final FilterMetrics metrics;
+    private final ColumnExtractor extractor;
+    // null without key_case.
+    private final KeyCaseConverter keyCase;
+    private final List<List<String>> moveTargets;
+    private final IntStack droppedIndexes = new IntStack();
+    private boolean rawAddValues;
+
+    TreeKeyFilter(ObjectMapper mapper, ConditionalMatcher matcher, FilterMetrics metrics, ColumnExtractor extractor,
+                  KeyCaseConverter keyCase)
+    {
+        this.mapper = mapper;
+        this.matcher = matcher;
+        this.metrics = metrics;
+        this.extractor = extractor;
+        this.keyCase = keyCase;
+        this.moveTargets = matcher.getAllRulesMatcher().getMoveTargets();
+    }
+
+    public void doFilter(JsonParser parser, JsonGenerator generator)
+            throws IOException
+    {
+        // raw JSON text can only be written by a JSON generator, not by Smile or CBOR ones.
+        JsonNode rootNode = filter(parser, !generator.canWriteBinaryNatively());
+        if (rootNode == null) {
+            generator.writeNull();
+            return;
+        }
+
+        long start = System.nanoTime();
+        mapper.writeTree(generator, rootNode);
+        metrics.serializeNanos += System.nanoTime() - start;
+    }
+
+    // returns the filtered tree, or null if the input is empty.
+    public JsonNode doFilter(JsonParser parser)
+            throws IOException
+    {
+        return filter(parser, false);
+    }
+
+    // reads the value at the current token of the parser, or the first value if there is no current token.
+    // with rawAddValues, added values are nodes of JSON text serialized at open, which can only be written.
+    private JsonNode filter(JsonParser parser, boolean rawAddValues)
+            throws IOException
+    {
+        this.rawAddValues = rawAddValues;
+        long start = System.nanoTime();
+        JsonNode rootNode = mapper.readTree(parser);
+        long parsed = System.nanoTime();
+        metrics.parseNanos += parsed - start;
+
+        droppedIndexes.clear();
+        filterNode(rootNode, matcher.select(rootNode).getRoot());
+        if (rootNode != null) {
+            moveKeys(rootNode);
+            if (keyCase != null) {
+                keyCase.convertKeys(rootNode);
+            }
+        }
+        metrics.transformNanos += System.nanoTime() - parsed;
+        return rootNode;
+    }
+
+    // sets the values of rename_keys taken while filtering. as add_keys, a new key is not written
+    // if its object is not in the output.
+    private void moveKeys(JsonNode root)
+    {
+        for (int i = 0; i < moveTargets.size(); i++) {
+            JsonNode moved = (JsonNode) extractor.getMoved(i);
+            if (moved == null) {
+                continue;
+            }
+            List<String> target = moveTargets.get(i);
+            JsonNode parent = root;
+            for (int j = 0; parent != null && j < target.size() - 1; j++) {
+                if (parent.isArray()) {
+                    Integer index = Ints.tryParse(target.get(j));
+                    parent = index == null ? null : parent.get(index);
+                }
+                else {
+                    parent = parent.get(target.get(j));
+                }
+            }
+            if (parent != null && parent.isObject()) {
+                // written last in the object, as the streaming engine does.
+                ((ObjectNode) parent).remove(target.get(target.size() - 1));
+                ((ObjectNode) parent).set(target.get(target.size() - 1), moved);
+                metrics.movedKeys++;
+            }
+        }
+    }
+
+    // if NullNode has come before end of a nested key, leave it as NullNode.
+    private void filterNode(JsonNode node, State state)
+    {
+        if (node == null || !state.hasChildren()) {
+            return;
+        }
+
+        if (node.isObject()) {
+            filterObject((ObjectNode) node, state);
+        }
+        else if (node.isArray()) {
+            filterArray((ArrayNode) node, state);
+        }
+        // TODO: if NullNode, need to create nodes?
+    }
+
+    // TODO: add_keys is overwriting existing values.
+    private void filterObject(ObjectNode object, State state)
+    {
+        // with only literal keys, looking them up is cheaper than visiting a larger object.
+        String[] literalKeys = state.getLiteralKeys();
+        if (state.hasOnlyLiteralChildren() && literalKeys.length < object.size()) {
+            for (String key : literalKeys) {
+                State child = state.getChild(key);
+                if (child == null) {
+                    continue;
+                }
+                if (child.hasInputToExtract() && object.has(key)) {
+                    extractor.extract(child, object.get(key));
+                }
+                if (child.isAdded()) {
+                    continue;
+                }
+                if (child.isDropped()) {
+                    if (object.remove(key) != null) {
+                        metrics.droppedKeys++;
+                    }
+                }
+                else {
+                    filterNode(object.get(key), child);
+                }
+            }
+        }
+        else {
+            Iterator<Map.Entry<String, JsonNode>> fields = object.fields();
+            while (fields.hasNext()) {
+                Map.Entry<String, JsonNode> field = fields.next();
+                State child = state.getChild(field.getKey());
+                if (child == null) {
+                    continue;
+                }
+                if (child.hasInputToExtract()) {
+                    extractor.extract(child, field.getValue());
+                }
+                if (child.isAdded()) {
+                    continue;
+                }
+                if (child.isDropped()) {
+                    fields.remove();
+                    metrics.droppedKeys++;
+                }
+                else {
+                    filterNode(field.getValue(), child);
+                }
+            }
+        }
+
+        List<AddedKey> addedKeys = state.getAddedKeys();
+        for (int i = 0; i < addedKeys.size(); i++) {
+            AddedKey addedKey = addedKeys.get(i);
+            object.set(addedKey.getName(), rawAddValues ? addedKey.getRawValue() : addedKey.getValue());
+            metrics.addedKeys++;
+        }
+    }
+
+    // TODO: filterArray cannot add not existing index.
+    private void filterArray(ArrayNode array, State state)
+    {
+        // dropped indexes in ascending order, on a stack shared by the nested arrays.
+        int droppedBase = droppedIndexes.push(array.size());
+        int droppedCount = 0;
+        if (state.hasOnlyLiteralChildren()) {
+            int[] literalIndexes = state.getLiteralIndexes();
+            for (int i = 0; i < literalIndexes.length && literalIndexes[i] < array.size(); i++) {
+                droppedCount = filterElement(array, literalIndexes[i], state.getChild(literalIndexes[i]), droppedBase, droppedCount);
+            }
+        }
+        else {
+            for (int index = 0; index < array.size(); index++) {
+                droppedCount = filterElement(array, index, state.getChild(index), droppedBase, droppedCount);
+            }
+        }
+
+        // indexes point to the original positions, so remove from the tail.
+        for (int i = droppedCount - 1; i >= 0; i--) {
+            array.remove(droppedIndexes.get(droppedBase + i));
+        }
+        droppedIndexes.pop(droppedBase);
+        metrics.droppedKeys += droppedCount;
+    }
+
+    // returns the new number of dropped indexes.
+    private int filterElement(ArrayNode array, int index, State child, int droppedBase, int droppedCount)
+    {
+        if (child == null) {
+            return droppedCount;
+        }
+
+        if (child.hasInputToExtract()) {
+            extractor.extract(child, array.get(index));
+        }
+        if (child.isDropped()) {
+            droppedIndexes.set(droppedBase + droppedCount, index);
+            droppedCount++;
+        }
+        else if (child.isAdded()) {
+            array.set(index, rawAddValues ? child.getAddRawValue() : child.getAddValue());
+            metrics.addedKeys++;
+        }
+        else {
+            filterNode(array.get(index), child);
+        }
+        return droppedCount;
+    }
+}
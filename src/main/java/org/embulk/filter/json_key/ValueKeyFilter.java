@@ -0,0 +1,155 @@
+package org.embulk.filter.json_key;
+
+import org.embulk.filter.json_key.KeyPathMatcher.AddedKey;
+import org.embulk.filter.json_key.KeyPathMatcher.State;
+import org.embulk.spi.Exec;
+import org.msgpack.value.ArrayValue;
+import org.msgpack.value.MapValue;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
+import org.slf4j.Logger;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Edits the msgpack {@link Value} of an Embulk json column directly, without a JSON text round trip.
+ * Values are immutable, so only the maps and arrays matched by a state of the {@link KeyPathMatcher} are rebuilt;
+ * all other values are shared with the input.
+ */
+class ValueKeyFilter
+{
+    private final Logger logger = Exec.getLogger(ValueKeyFilter.class);
+    private final ConditionalMatcher matcher;
+    private final FilterMetrics metrics;
+    private final ColumnExtractor extractor;
+    // null without key_case.
+    private final KeyCaseConverter keyCase;
+    private final List<List<String>> moveTargets;
+    private final IntStack writtenFlags = new IntStack();
+
+    ValueKeyFilter(ConditionalMatcher matcher, FilterMetrics metrics, ColumnExtractor extractor, KeyCaseConverter keyCase)
+    {
+        this.matcher = matcher;
+        this.metrics = metrics;
+        this.extractor = extractor;
+        this.keyCase = keyCase;
+        this.moveTargets = matcher.getAllRulesMatcher().getMoveTargets();
+    }
+
+    public Value doFilter(Value value)
+    {
+        if (value == null) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Value filtered = filterValue(value, matcher.select(value).getRoot());
+        filtered = moveKeys(filtered);
+        if (keyCase != null) {
+            filtered = keyCase.convertKeys(filtered);
+        }
+        metrics.transformNanos += System.nanoTime() - start;
+        return filtered;
+    }
+
+    // sets the values of rename_keys taken while filtering, as the tree engine does.
+    private Value moveKeys(Value value)
+    {
+        for (int i = 0; i < moveTargets.size(); i++) {
+            Value moved = (Value) extractor.getMoved(i);
+            if (moved == null) {
+                continue;
+            }
+            Value set = JsonValues.set(value, moveTargets.get(i), moved);
+            if (set != null) {
+                value = set;
+                metrics.movedKeys++;
+            }
+        }
+        return value;
+    }
+
+    private Value filterValue(Value value, State state)
+    {
+        if (!state.hasChildren()) {
+            return value;
+        }
+
+        if (value.isMapValue()) {
+            return filterMap(value.asMapValue(), state);
+        }
+        else if (value.isArrayValue()) {
+            return filterArray(value.asArrayValue(), state);
+        }
+        else {
+            return value;
+        }
+    }
+
+    private Value filterMap(MapValue map, State state)
+    {
+        List<AddedKey> addedKeys = state.getAddedKeys();
+        int written = writtenFlags.push(addedKeys.size());
+        ValueFactory.MapBuilder builder = ValueFactory.newMapBuilder();
+        for (Map.Entry<Value, Value> entry : map.entrySet()) {
+            Value key = entry.getKey();
+            State child = key.isStringValue() ? state.getChild(key.asStringValue().asString()) : null;
+            if (child == null) {
+                builder.put(key, entry.getValue());
+                continue;
+            }
+            if (child.hasInputToExtract()) {
+                extractor.extract(child, entry.getValue());
+            }
+            if (child.isDropped()) {
+                metrics.droppedKeys++;
+            }
+            else if (child.isAdded()) {
+                builder.put(key, child.getAddMsgpackValue());
+                writtenFlags.set(written + state.getAddIndex(key.asStringValue().asString()), 1);
+                metrics.addedKeys++;
+            }
+            else {
+                builder.put(key, filterValue(entry.getValue(), child));
+            }
+        }
+
+        for (int i = 0; i < addedKeys.size(); i++) {
+            if (writtenFlags.get(written + i) == 0) {
+                AddedKey addedKey = addedKeys.get(i);
+                builder.put(ValueFactory.newString(addedKey.getName()), addedKey.getMsgpackValue());
+                metrics.addedKeys++;
+            }
+        }
+        writtenFlags.pop(written);
+        return builder.build();
+    }
+
+    // TODO: cannot add not existing index, same as the tree engine.
+    private Value filterArray(ArrayValue array, State state)
+    {
+        List<Value> values = new ArrayList<>(array.size());
+        for (int index = 0; index < array.size(); index++) {
+            State child = state.getChild(index);
+            if (child == null) {
+                values.add(array.get(index));
+                continue;
+            }
+            if (child.hasInputToExtract()) {
+                extractor.extract(child, array.get(index));
+            }
+            if (child.isDropped()) {
+                metrics.droppedKeys++;
+            }
+            else if (child.isAdded()) {
+                values.add(child.getAddMsgpackValue());
+                metrics.addedKeys++;
+            }
+            else {
+                values.add(filterValue(array.get(index), child));
+            }
+        }
+        return ValueFactory.newArray(values);
+    }
+}
@@ -0,0 +1,284 @@
+package org.embulk.filter.json_key;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import org.embulk.EmbulkTestRuntime;
+import org.embulk.config.ConfigSource;
+import org.embulk.config.TaskSource;
+import org.embulk.filter.json_key.JsonKeyFilterPlugin.PluginTask;
+import org.embulk.spi.Exec;
+import org.embulk.spi.Page;
+import org.embulk.spi.PageOutput;
+import org.embulk.spi.PageTestUtils;
+import org.embulk.spi.Schema;
+import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.spi.json.JsonParser;
+import org.junit.Rule;
+import org.junit.Test;
+import org.slf4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.embulk.spi.type.Types.JSON;
+import static org.embulk.spi.type.Types.LONG;
+import static org.embulk.spi.type.Types.STRING;
+import static org.junit.Assert.fail;
+
+/**
+ * Runs records of synthetic payloads through {@link JsonKeyFilterPlugin#open} for each scenario, and fails
+ * if the records per second of a scenario fall below its baseline by more than the tolerance.
+ * Run with {@code ./gradlew perfTest}, which is not a part of {@code ./gradlew test}.
+ *
+ * Only the time in FilteredPageOutput#add and #finish is measured: pages are built before, and the output pages
+ * are released after. The same records are filtered once to warm up before being measured.
+ * Baselines depend on the machine, so they are recorded on the machine which runs the suite with
+ * {@code -PperfUpdateBaseline}. A scenario without a baseline is logged as a warning until then, and cannot fail.
+ */
+public class TestThroughputRegression
+{
+    // distinct payloads of a scenario, cycled through its records.
+    private static final int DISTINCT_PAYLOADS = 1000;
+    private static final int RECORDS_PER_PAGE_BATCH = 1000;
+    private static final long MAX_WARMUP_RECORDS = 200000;
+    private static final String BASELINE_SUFFIX = ".records_per_sec";
+
+    @Rule
+    public EmbulkTestRuntime runtime = new EmbulkTestRuntime();
+
+    private static class Scenario
+    {
+        private final String name;
+        private final boolean jsonColumn;
+        private final int payloadSize;
+        private final int depth;
+        private final int arrayWidth;
+        private final int keyCardinality;
+        private final Map<String, Object> config;
+
+        private Scenario(String name, boolean jsonColumn, int payloadSize, int depth, int arrayWidth, int keyCardinality,
+                         Map<String, Object> config)
+        {
+            this.name = name;
+            this.jsonColumn = jsonColumn;
+            this.payloadSize = payloadSize;
+            this.depth = depth;
+            this.arrayWidth = arrayWidth;
+            this.keyCardinality = keyCardinality;
+            this.config = config;
+        }
+    }
+
+    private static class Result
+    {
+        private final double recordsPerSec;
+        private final double megabytesPerSec;
+
+        private Result(long records, long chars, long nanos)
+        {
+            double seconds = nanos / 1e9;
+            this.recordsPerSec = records / seconds;
+            // payloads are ASCII, so a char is a byte.
+            this.megabytesPerSec = chars / 1e6 / seconds;
+        }
+    }
+
+    private static List<Scenario> scenarios()
+    {
+        return ImmutableList.of(
+                new Scenario("tree_drop_1k", false, 1024, 2, 2, 0, dropKeys("tree", 2)),
+                new Scenario("streaming_drop_1k", false, 1024, 2, 2, 0, dropKeys("streaming", 2)),
+                new Scenario("streaming_keep_1k", false, 1024, 2, 2, 0, keepKeys("streaming")),
+                new Scenario("tree_drop_16k_deep", false, 16384, 4, 16, 0, dropKeys("tree", 4)),
+                new Scenario("streaming_drop_16k_deep", false, 16384, 4, 16, 0, dropKeys("streaming", 4)),
+                new Scenario("streaming_drop_varying_keys", false, 1024, 2, 2, 10000, dropKeys("streaming", 2)),
+                new Scenario("json_column_drop_1k", true, 1024, 2, 2, 0, dropKeys("tree", 2)),
+                new Scenario("streaming_drop_1k_batch", false, 1024, 2, 2, 0,
+                             with(dropKeys("streaming", 2), "batch", true)),
+                new Scenario("streaming_drop_1k_parallel", false, 1024, 2, 2, 0,
+                             with(dropKeys("streaming", 2), "parallelism", 4)));
+    }
+
+    private static Map<String, Object> dropKeys(String engine, int depth)
+    {
+        return ImmutableMap.<String, Object>of(
+                "engine", engine,
+                "add_keys", JsonPayloadGenerator.addKeys(10, depth),
+                "drop_keys", JsonPayloadGenerator.dropKeys(10, depth));
+    }
+
+    private static Map<String, Object> keepKeys(String engine)
+    {
+        return ImmutableMap.<String, Object>of(
+                "engine", engine,
+                "keep_keys", ImmutableList.of(ImmutableMap.of("key", JsonPayloadGenerator.fieldName(0)),
+                                              ImmutableMap.of("key", JsonPayloadGenerator.levelName(0) + ".*")));
+    }
+
+    private static Map<String, Object> with(Map<String, Object> config, String key, Object value)
+    {
+        return ImmutableMap.<String, Object>builder().putAll(config).put(key, value).build();
+    }
+
+    @Test
+    public void testThroughput()
+            throws IOException
+    {
+        long records = Long.parseLong(System.getProperty("perf.records", "1000000"));
+        double tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.1"));
+        boolean updateBaseline = Boolean.parseBoolean(System.getProperty("perf.updateBaseline", "false"));
+        File baselineFile = new File(System.getProperty("perf.baselineFile", "src/perf/throughput-baseline.properties"));
+        File resultsFile = new File(System.getProperty("perf.resultsFile", "build/reports/perf/throughput.properties"));
+        Properties baseline = load(baselineFile);
+        Logger logger = Exec.getLogger(TestThroughputRegression.class);
+
+        Map<String, Result> results = new LinkedHashMap<>();
+        List<String> regressions = new ArrayList<>();
+        List<String> missing = new ArrayList<>();
+        for (Scenario scenario : scenarios()) {
+            Result result = run(scenario, records);
+            results.put(scenario.name, result);
+
+            String expected = baseline.getProperty(scenario.name + BASELINE_SUFFIX);
+            String comparison = "no baseline";
+            if (expected == null) {
+                missing.add(scenario.name);
+            }
+            else {
+                double expectedRecordsPerSec = Double.parseDouble(expected);
+                double change = result.recordsPerSec / expectedRecordsPerSec - 1;
+                comparison = String.format(Locale.ENGLISH, "%+.1f%% of baseline %.0f", change * 100, expectedRecordsPerSec);
+                if (change < -tolerance) {
+                    regressions.add(String.format("%s: %s", scenario.name, comparison));
+                }
+            }
+            logger.info(String.format(Locale.ENGLISH, "%-32s %12.0f records/sec %9.1f MB/s  (%s)",
+                                      scenario.name, result.recordsPerSec, result.megabytesPerSec, comparison));
+        }
+
+        write(resultsFile, results);
+        if (updateBaseline) {
+            write(baselineFile, results);
+            logger.info(String.format("Baseline updated: %s", baselineFile));
+            return;
+        }
+        if (!missing.isEmpty()) {
+            logger.warn(String.format("No baseline of %s in %s. Record it with ./gradlew perfTest -PperfUpdateBaseline", missing, baselineFile));
+        }
+        if (!regressions.isEmpty()) {
+            fail(String.format(Locale.ENGLISH, "Throughput regressed by more than %.0f%%: %s", tolerance * 100, regressions));
+        }
+    }
+
+    private Result run(Scenario scenario, long records)
+    {
+        Schema schema = Schema.builder()
+                .add("id", LONG)
+                .add("payload", scenario.jsonColumn ? JSON : STRING)
+                .build();
+
+        JsonPayloadGenerator generator = new JsonPayloadGenerator(0L);
+        JsonParser jsonParser = new JsonParser();
+        Object[] payloads = new Object[DISTINCT_PAYLOADS];
+        int[] payloadChars = new int[DISTINCT_PAYLOADS];
+        for (int i = 0; i < DISTINCT_PAYLOADS; i++) {
+            String json = generator.generate(scenario.payloadSize, scenario.depth, scenario.arrayWidth, scenario.keyCardinality);
+            payloads[i] = scenario.jsonColumn ? jsonParser.parse(json) : json;
+            payloadChars[i] = json.length();
+        }
+
+        ConfigSource config = Exec.newConfigSource().set("column", "payload");
+        for (Map.Entry<String, Object> entry : scenario.config.entrySet()) {
+            config.set(entry.getKey(), entry.getValue());
+        }
+        TaskSource taskSource = config.loadConfig(PluginTask.class).dump();
+
+        filter(schema, taskSource, payloads, payloadChars, Math.min(records, MAX_WARMUP_RECORDS));
+        return filter(schema, taskSource, payloads, payloadChars, records);
+    }
+
+    private Result filter(Schema schema, TaskSource taskSource, Object[] payloads, int[] payloadChars, long records)
+    {
+        MockPageOutput output = new MockPageOutput();
+        PageOutput pageOutput = new JsonKeyFilterPlugin().open(taskSource, schema, schema, output);
+        long chars = 0;
+        long nanos = 0;
+        try {
+            for (long record = 0; record < records; ) {
+                int count = (int) Math.min(RECORDS_PER_PAGE_BATCH, records - record);
+                Object[] values = new Object[count * 2];
+                for (int i = 0; i < count; i++) {
+                    int payload = (int) ((record + i) % DISTINCT_PAYLOADS);
+                    values[i * 2] = record + i;
+                    values[i * 2 + 1] = payloads[payload];
+                    chars += payloadChars[payload];
+                }
+                List<Page> pages = PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, values);
+
+                long start = System.nanoTime();
+                for (Page page : pages) {
+                    pageOutput.add(page);
+                }
+                nanos += System.nanoTime() - start;
+                record += count;
+                release(output);
+            }
+            long start = System.nanoTime();
+            pageOutput.finish();
+            nanos += System.nanoTime() - start;
+        }
+        finally {
+            pageOutput.close();
+            release(output);
+        }
+        return new Result(records, chars, nanos);
+    }
+
+    private static void release(MockPageOutput output)
+    {
+        for (Page page : output.pages) {
+            page.release();
+        }
+        output.pages.clear();
+    }
+
+    private static Properties load(File file)
+            throws IOException
+    {
+        Properties properties = new Properties();
+        if (file.exists()) {
+            try (InputStream in = new FileInputStream(file)) {
+                properties.load(in);
+            }
+        }
+        return properties;
+    }
+
+    // the scenarios in their order, so that a baseline file changes line by line.
+    private static void write(File file, Map<String, Result> results)
+            throws IOException
+    {
+        File parent = file.getAbsoluteFile().getParentFile();
+        if (!parent.exists() && !parent.mkdirs()) {
+            throw new IOException(String.format("Cannot create %s", parent));
+        }
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.ISO_8859_1)) {
+            writer.write("# records per second of each scenario of TestThroughputRegression. updated by ./gradlew perfTest -PperfUpdateBaseline\n");
+            for (Map.Entry<String, Result> entry : results.entrySet()) {
+                writer.write(String.format(Locale.ENGLISH, "%s%s=%.0f\n", entry.getKey(), BASELINE_SUFFIX, entry.getValue().recordsPerSec));
+            }
+        }
+    }
+}
@@ -1,9 +1,15 @@
 package org.embulk.filter.json_key;
 
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
 import com.google.common.base.Optional;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.io.BaseEncoding;
 import org.embulk.EmbulkTestRuntime;
 import org.embulk.config.ConfigException;
 import org.embulk.config.ConfigLoader;
@@ -19,7 +25,11 @@ import org.embulk.spi.PageTestUtils;
 import org.embulk.spi.Schema;
 import org.embulk.spi.TestPageBuilderReader;
 import org.embulk.spi.TestPageBuilderReader.MockPageOutput;
+import org.embulk.spi.time.Timestamp;
+import org.embulk.spi.util.Pages;
 import org.json.JSONException;
+import org.msgpack.value.Value;
+import org.msgpack.value.ValueFactory;
 import org.junit.Before;
 import org.junit.Ignore;
 import org.junit.Rule;
@@ -28,11 +38,20 @@ import org.junit.rules.ExpectedException;
 import org.skyscreamer.jsonassert.JSONAssert;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.embulk.spi.FilterPlugin.*;
+import static org.embulk.spi.type.Types.BOOLEAN;
+import static org.embulk.spi.type.Types.DOUBLE;
+import static org.embulk.spi.type.Types.JSON;
+import static org.embulk.spi.type.Types.LONG;
 import static org.embulk.spi.type.Types.STRING;
+import static org.embulk.spi.type.Types.TIMESTAMP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 public class TestJsonKeyFilterPlugin
 {
@@ -89,6 +108,35 @@ public class TestJsonKeyFilterPlugin
         }
     }
 
+    private List<Object[]> filterRecords(TaskSource taskSource, Schema outputSchema, Object... baseData)
+    {
+        MockPageOutput mockPageOutput = new MockPageOutput();
+        PageOutput pageOutput = filter.open(taskSource,
+                                            schema,
+                                            outputSchema,
+                                            mockPageOutput);
+
+        for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(),
+                                                 schema,
+                                                 baseData)) {
+            pageOutput.add(page);
+        }
+
+        pageOutput.finish();
+        pageOutput.close();
+
+        return Pages.toObjects(outputSchema, mockPageOutput.pages);
+    }
+
+    private static void assertJsonEquals(String expected, Object actual)
+    {
+        try {
+            JSONAssert.assertEquals(expected, (String) actual, true);
+        }
+        catch (JSONException e) {
+            throw Throwables.propagate(e);
+        }
+    }
 
     @Test
     public void testConfigRequiredValues()
@@ -96,16 +144,49 @@ public class TestJsonKeyFilterPlugin
         exception.expect(ConfigException.class);
         exception.expectMessage("Field 'column' is required but not set");
 
-        Exec.newConfigSource().loadConfig(PluginTask.class);
+        filter.transaction(Exec.newConfigSource(), schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+            }
+        });
+    }
+
+    @Test
+    public void testConfigColumnMustBeString()
+    {
+        exception.expect(ConfigException.class);
+
+        Schema schema = Schema.builder().add("_c0", LONG).build();
+        filter.transaction(getDefaultConfigSource(), schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+            }
+        });
     }
 
     @Test
     public void testConfigDefaultValues()
     {
         PluginTask task = getDefaultConfigSource().loadConfig(PluginTask.class);
+        assertTrue(task.getColumnConfigs().isEmpty());
         assertTrue(task.getAddKeyConfigs().isEmpty());
         assertTrue(task.getDropKeyConfigs().isEmpty());
         assertEquals(".", task.getNestedKeyDelimiter());
+        assertEquals(JsonKeyFilterPlugin.FilterEngine.TREE, task.getEngine());
+        assertEquals(1, task.getParallelism());
+        assertEquals(0, task.getCacheEntries());
+    }
+
+    @Test
+    public void testConfigUnknownEngine()
+    {
+        exception.expect(ConfigException.class);
+
+        getDefaultConfigSource().set("engine", "unknown").loadConfig(PluginTask.class);
     }
 
 
@@ -941,4 +1022,1137 @@ Case:
             }
         });
     }
+
+    /*
+    Case:
+        Streaming engine adds and drops keys in the same way as the tree engine.
+     */
+    @Test
+    public void testDoFilterStreamingEngine()
+            throws IOException, JSONException
+    {
+        ImmutableList.Builder<Object> addKeys = ImmutableList.builder();
+        addKeys.add(ImmutableMap.of("key", "added1", "value", Optional.of("str")));
+        addKeys.add(ImmutableMap.of("key", "c2.added2", "value", ImmutableMap.of("nested", 1)));
+        addKeys.add(ImmutableMap.of("key", "c2.nested", "value", Optional.of(true)));
+        addKeys.add(ImmutableMap.of("key", "c3.0", "value", Optional.absent()));
+        addKeys.add(ImmutableMap.of("key", "c4.added4", "value", Optional.of(1)));
+
+        ImmutableList.Builder<Object> dropKeys = ImmutableList.builder();
+        dropKeys.add(ImmutableMap.of("key", "c1"));
+        dropKeys.add(ImmutableMap.of("key", "c3.2"));
+        dropKeys.add(ImmutableMap.of("key", "c5.nested.nested"));
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("engine", "streaming");
+        config.set("add_keys", addKeys.build());
+        config.set("drop_keys", dropKeys.build());
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                String jsonData = "{\"c1\":\"value\",\"c2\":{\"nested\":\"value\"},\"c3\":[1,2,3,4]," +
+                        "\"c4\":null,\"c5\":{\"nested\":{\"nested\":\"value\",\"nested2\":[{}]}}}";
+                /*
+                {
+                  "c1": "value",
+                  "c2": {
+                    "nested": "value"
+                  },
+                  "c3": [1, 2, 3, 4],
+                  "c4": null,
+                  "c5": {
+                    "nested": {
+                      "nested": "value",
+                      "nested2": [{}]
+                    }
+                  }
+                }
+                 */
+
+                String expected = "{\"c2\":{\"nested\":true,\"added2\":{\"nested\":1}},\"c3\":[null,2,4]," +
+                        "\"c4\":null,\"c5\":{\"nested\":{\"nested2\":[{}]}},\"added1\":\"str\"}";
+                /*
+                {
+                  "c2": {
+                    "nested": true,
+                    "added2": {
+                      "nested": 1
+                    }
+                  },
+                  "c3": [null, 2, 4],
+                  "c4": null,
+                  "c5": {
+                    "nested": {
+                      "nested2": [{}]
+                    }
+                  },
+                  "added1": "str"
+                }
+                */
+                assertJsonMy(taskSource, expected, jsonData);
+            }
+        });
+    }
+
+    /*
+    Case:
+        Many keys sharing prefixes, and several indexes of the same array.
+        Indexes point to the original positions of the elements.
+     */
+    @Test
+    public void testDoFilterDropManyKeysSharingPrefixes()
+            throws IOException, JSONException
+    {
+        ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        for (int i = 0; i < 300; i++) {
+            builder.add(ImmutableMap.of("key", "c1.nested" + i));
+        }
+        builder.add(ImmutableMap.of("key", "c2.0"));
+        builder.add(ImmutableMap.of("key", "c2.2"));
+
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", builder.build());
+
+            filter.transaction(config, schema, new Control()
+            {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    String jsonData = "{\"c1\":{\"nested0\":0,\"nested150\":150,\"nested299\":299,\"nested300\":300}," +
+                            "\"c2\":[0,1,2,3]}";
+                    String expected = "{\"c1\":{\"nested300\":300},\"c2\":[1,3]}";
+                    assertJsonMy(taskSource, expected, jsonData);
+                }
+            });
+        }
+    }
+
+    /*
+    Case:
+        Records larger than the reused input/output buffers, mixed with small records and nulls.
+     */
+    @Test
+    public void testDoFilterRecordsOfVariousSizes()
+            throws IOException, JSONException
+    {
+        ImmutableList.Builder<Object> builder = ImmutableList.builder();
+        builder.add(ImmutableMap.of("key", "c1"));
+
+        final StringBuilder large = new StringBuilder("{\"c1\":\"value\",\"c2\":[");
+        for (int i = 0; i < 20000; i++) {
+            large.append(i > 0 ? "," : "").append(i);
+        }
+        large.append("]}");
+        final String largeExpected = large.toString().replace("\"c1\":\"value\",", "");
+
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", builder.build());
+
+            filter.transaction(config, schema, new Control()
+            {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    List<Object[]> records = filterRecords(taskSource, outputSchema,
+                                                           "{\"c1\":1,\"c2\":2}", large.toString(), null, "{\"c1\":1}");
+                    assertEquals(4, records.size());
+                    assertJsonEquals("{\"c2\":2}", records.get(0)[0]);
+                    assertJsonEquals(largeExpected, records.get(1)[0]);
+                    assertEquals(null, records.get(2)[0]);
+                    assertJsonEquals("{}", records.get(3)[0]);
+                }
+            });
+        }
+    }
+
+    /*
+    Case:
+        Several JSON columns filtered in one pass, each with its own rules.
+     */
+    @Test
+    public void testDoFilterMultipleColumns()
+            throws IOException, JSONException
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", LONG)
+                .add("_c2", STRING)
+                .add("_c3", STRING)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+        config.set("columns", ImmutableList.of(
+                ImmutableMap.of("name", "_c2",
+                                "add_keys", ImmutableList.of(ImmutableMap.of("key", "added", "value", 1))),
+                ImmutableMap.of("name", "_c3",
+                                "drop_keys", ImmutableList.of(ImmutableMap.of("key", "c2")))));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                String jsonData = "{\"c1\":1,\"c2\":2}";
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                                                         jsonData, 5L, jsonData, jsonData)) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertEquals(1, records.size());
+                assertJsonEquals("{\"c2\":2}", records.get(0)[0]);
+                assertEquals(5L, records.get(0)[1]);
+                assertJsonEquals("{\"c1\":1,\"c2\":2,\"added\":1}", records.get(0)[2]);
+                assertJsonEquals("{\"c1\":1}", records.get(0)[3]);
+            }
+        });
+    }
+
+    @Test
+    public void testConfigDuplicatedColumns()
+    {
+        exception.expect(ConfigException.class);
+        exception.expectMessage("Column '_c0' is configured twice");
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("columns", ImmutableList.of(ImmutableMap.of("name", "_c0")));
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+            }
+        });
+    }
+
+    /*
+    Case:
+        json type columns are edited as msgpack values.
+     */
+    @Test
+    public void testDoFilterJsonColumn()
+            throws IOException, JSONException
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", JSON)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("add_keys", ImmutableList.of(
+                ImmutableMap.of("key", "c2.added", "value", ImmutableMap.of("nested", ImmutableList.of(1, "str"))),
+                ImmutableMap.of("key", "c3.1", "value", true)));
+        config.set("drop_keys", ImmutableList.of(
+                ImmutableMap.of("key", "c1"),
+                ImmutableMap.of("key", "c3.0")));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                Value jsonData = ValueFactory.newMapBuilder()
+                        .put(ValueFactory.newString("c1"), ValueFactory.newString("value"))
+                        .put(ValueFactory.newString("c2"), ValueFactory.newMap())
+                        .put(ValueFactory.newString("c3"), ValueFactory.newArray(
+                                ValueFactory.newInteger(1), ValueFactory.newInteger(2), ValueFactory.newInteger(3)))
+                        .build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, jsonData, null)) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertEquals(2, records.size());
+                assertJsonEquals("{\"c2\":{\"added\":{\"nested\":[1,\"str\"]}},\"c3\":[true,3]}",
+                                 ((Value) records.get(0)[0]).toJson());
+                assertEquals(null, records.get(1)[0]);
+            }
+        });
+    }
+
+    /*
+    Case:
+        output_type: json rewrites the column type and writes the result as a msgpack value.
+     */
+    @Test
+    public void testDoFilterOutputTypeJson()
+            throws IOException, JSONException
+    {
+        ImmutableList.Builder<Object> addKeys = ImmutableList.builder();
+        addKeys.add(ImmutableMap.of("key", "added", "value", ImmutableMap.of("nested", ImmutableList.of(1, 2.5))));
+        ImmutableList.Builder<Object> dropKeys = ImmutableList.builder();
+        dropKeys.add(ImmutableMap.of("key", "c1"));
+
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("output_type", "json");
+            config.set("add_keys", addKeys.build());
+            config.set("drop_keys", dropKeys.build());
+
+            filter.transaction(config, schema, new Control()
+            {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    assertEquals(JSON, outputSchema.getColumnType(0));
+
+                    List<Object[]> records = filterRecords(taskSource, outputSchema,
+                                                           "{\"c1\":1,\"c2\":[true,null,\"str\",12345678901234567890]}", null);
+                    assertEquals(2, records.size());
+                    assertJsonEquals("{\"c2\":[true,null,\"str\",12345678901234567890],\"added\":{\"nested\":[1,2.5]}}",
+                                     ((Value) records.get(0)[0]).toJson());
+                    assertEquals(null, records.get(1)[0]);
+                }
+            });
+        }
+    }
+
+    /*
+    Case:
+        output_type: string writes a json column as JSON text.
+     */
+    @Test
+    public void testDoFilterJsonColumnOutputTypeString()
+            throws IOException, JSONException
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", JSON)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("output_type", "string");
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                assertEquals(STRING, outputSchema.getColumnType(0));
+
+                Value jsonData = ValueFactory.newMapBuilder()
+                        .put(ValueFactory.newString("c1"), ValueFactory.newString("value"))
+                        .put(ValueFactory.newString("c2"), ValueFactory.newInteger(2))
+                        .build();
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, jsonData)) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertJsonEquals("{\"c2\":2}", records.get(0)[0]);
+            }
+        });
+    }
+
+    /*
+    Case:
+        parallelism > 1 filters records on worker threads and keeps the input order.
+     */
+    @Test
+    public void testDoFilterParallelKeepsOrder()
+            throws IOException, JSONException
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", LONG)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("parallelism", 4);
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                Object[] baseData = new Object[2000 * 2];
+                for (int i = 0; i < 2000; i++) {
+                    baseData[i * 2] = i % 100 == 0 ? null : String.format("{\"c1\":1,\"c2\":%d}", i);
+                    baseData[i * 2 + 1] = (long) i;
+                }
+
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema, baseData)) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertEquals(2000, records.size());
+                for (int i = 0; i < 2000; i++) {
+                    assertEquals((long) i, records.get(i)[1]);
+                    if (i % 100 == 0) {
+                        assertEquals(null, records.get(i)[0]);
+                    }
+                    else {
+                        assertEquals(String.format("{\"c2\":%d}", i), records.get(i)[0]);
+                    }
+                }
+            }
+        });
+    }
+
+    /*
+    Case:
+        Repeated payloads are served from the result cache.
+     */
+    @Test
+    public void testDoFilterWithResultCache()
+            throws IOException, JSONException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("cache_entries", 2);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"c2\":1}", jsonKeyFilter.doFilter("{\"c1\":0,\"c2\":1}"));
+            assertEquals("{\"c2\":2}", jsonKeyFilter.doFilter("{\"c1\":0,\"c2\":2}"));
+            assertEquals("{\"c2\":1}", jsonKeyFilter.doFilter("{\"c1\":0,\"c2\":1}"));
+            assertEquals("{\"c2\":3}", jsonKeyFilter.doFilter("{\"c1\":0,\"c2\":3}"));
+            // {"c2":2} was the least recently used, so it has been evicted.
+            assertEquals("{\"c2\":2}", jsonKeyFilter.doFilter("{\"c1\":0,\"c2\":2}"));
+
+            FilterResultCache cache = jsonKeyFilter.getCache();
+            assertEquals(1, cache.getHits());
+            assertEquals(4, cache.getMisses());
+            assertEquals(2, cache.getEvictions());
+            assertEquals(2, cache.size());
+        }
+    }
+
+    @Test
+    public void testDoFilterMetrics()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "c3", "value", 3)));
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1"), ImmutableMap.of("key", "c9")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"c2\":2,\"c3\":3}", jsonKeyFilter.doFilter("{\"c1\":1,\"c2\":2}"));
+            try {
+                jsonKeyFilter.doFilter("{\"c1\":");
+                fail("invalid json must not be filtered");
+            }
+            catch (IOException e) {
+                // expected
+            }
+
+            FilterMetrics metrics = jsonKeyFilter.getMetrics();
+            assertEquals(2, metrics.values);
+            assertEquals(21, metrics.inputChars);
+            assertEquals(15, metrics.outputChars);
+            assertEquals(1, metrics.addedKeys);
+            assertEquals(1, metrics.droppedKeys);
+            assertEquals(1, metrics.parseFailures);
+        }
+    }
+
+    @Test
+    public void testDoFilterPassThroughWithoutDroppedKeys()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "user.email"), ImmutableMap.of("key", "ids.0")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            String untouched = "{ \"user\" : { \"name\" : \"a\" }, \"tags\" : [\"x\"] }";
+            // every record is parsed by default.
+            assertEquals("{\"user\":{\"name\":\"a\"},\"tags\":[\"x\"]}", jsonKeyFilter.doFilter(untouched));
+            assertEquals(0, jsonKeyFilter.getMetrics().passedThrough);
+
+            config.set("pass_through_unmatched", true);
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertSame(untouched, jsonKeyFilter.doFilter(untouched));
+            // "email" is escaped, so the record is filtered.
+            assertEquals("{\"user\":{}}", jsonKeyFilter.doFilter("{\"user\":{\"\\u0065mail\":\"a\"}}"));
+            assertEquals("{\"ids\":[2]}", jsonKeyFilter.doFilter("{\"ids\":[1,2]}"));
+            assertEquals(1, jsonKeyFilter.getMetrics().passedThrough);
+        }
+    }
+
+    @Test
+    public void testDoFilterCopiesColumnsOfAllTypes()
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", BOOLEAN)
+                .add("_c1", LONG)
+                .add("_c2", DOUBLE)
+                .add("_c3", STRING)
+                .add("_c4", TIMESTAMP)
+                .add("_c5", JSON)
+                .add("_c6", STRING)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("column", "_c6");
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                Timestamp timestamp = Timestamp.ofEpochSecond(1446000000L);
+                Value json = ValueFactory.newMap(ValueFactory.newString("c1"), ValueFactory.newInteger(1));
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                                                         true, 1L, 1.5, "{\"c1\":1}", timestamp, json, "{\"c1\":1,\"c2\":2}",
+                                                         null, null, null, null, null, null, null)) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertEquals(2, records.size());
+                assertEquals(true, records.get(0)[0]);
+                assertEquals(1L, records.get(0)[1]);
+                assertEquals(1.5, records.get(0)[2]);
+                assertEquals("{\"c1\":1}", records.get(0)[3]);
+                assertEquals(timestamp, records.get(0)[4]);
+                assertEquals(json, records.get(0)[5]);
+                assertEquals("{\"c2\":2}", records.get(0)[6]);
+                for (Object value : records.get(1)) {
+                    assertEquals(null, value);
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDoFilterWildcardKeys()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "items.*.checked", "value", true)));
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "**.password"), ImmutableMap.of("key", "items.*.secret")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            String input = "{\"password\":1,\"user\":{\"name\":\"a\",\"password\":2,\"logins\":[{\"password\":3}]}," +
+                    "\"items\":[{\"id\":1,\"secret\":\"x\"},{\"id\":2}]}";
+            String expected = "{\"user\":{\"name\":\"a\",\"logins\":[{}]}," +
+                    "\"items\":[{\"id\":1,\"checked\":true},{\"id\":2,\"checked\":true}]}";
+            assertEquals(expected, jsonKeyFilter.doFilter(input));
+            assertEquals(ValueFactory.newMap(ValueFactory.newString("user"), ValueFactory.newMap()),
+                         jsonKeyFilter.doFilter(ValueFactory.newMap(ValueFactory.newString("user"),
+                                                                    ValueFactory.newMap(ValueFactory.newString("password"), ValueFactory.newInteger(1)))));
+        }
+    }
+
+    @Test
+    public void testConfigAddKeyEndingWithWildcard()
+    {
+        exception.expect(ConfigException.class);
+        exception.expectMessage("The last segment of add_keys must be a key name: a.*");
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "a.*")));
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+            }
+        });
+    }
+
+    @Test
+    public void testDoFilterKeepKeys()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("keep_keys", ImmutableList.of(ImmutableMap.of("key", "id"), ImmutableMap.of("key", "user"),
+                                                     ImmutableMap.of("key", "items.*.name")));
+            config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "source", "value", "sdk")));
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "user.password")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            String input = "{\"id\":1,\"device\":{\"os\":\"x\",\"model\":[1,2]},\"user\":{\"name\":\"a\",\"password\":\"p\"}," +
+                    "\"items\":[{\"name\":\"i\",\"price\":1},2],\"trace\":[{\"id\":2}]}";
+            String expected = "{\"id\":1,\"user\":{\"name\":\"a\"},\"items\":[{\"name\":\"i\"},2],\"source\":\"sdk\"}";
+            assertEquals(expected, jsonKeyFilter.doFilter(input));
+        }
+    }
+
+    @Test
+    public void testDoFilterAddNestedValue()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "meta", "value",
+                                                                    ImmutableMap.of("tags", ImmutableList.of("a", "b"), "v", 1))));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"id\":1,\"meta\":{\"tags\":[\"a\",\"b\"],\"v\":1}}", jsonKeyFilter.doFilter("{\"id\":1}"));
+            assertEquals("{\"id\":1,\"meta\":{\"tags\":[\"a\",\"b\"],\"v\":1}}", jsonKeyFilter.doFilterAsValue("{\"id\":1}").toJson());
+        }
+    }
+
+    @Test
+    public void testDoFilterExtractColumns()
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            for (int parallelism : ImmutableList.of(1, 2)) {
+                ConfigSource config = getDefaultConfigSource();
+                config.set("engine", engine);
+                config.set("parallelism", parallelism);
+                config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "user")));
+                config.set("extract_columns", ImmutableList.of(ImmutableMap.of("path", "user.id", "name", "user_id", "type", "long"),
+                                                               ImmutableMap.of("path", "event.ts", "name", "ts", "type", "timestamp"),
+                                                               ImmutableMap.of("path", "tags.1", "name", "tag", "type", "string")));
+
+                filter.transaction(config, schema, new Control()
+                {
+                    @Override
+                    public void run(TaskSource taskSource, Schema outputSchema)
+                    {
+                        assertEquals(4, outputSchema.getColumnCount());
+                        assertEquals(LONG, outputSchema.getColumnType(1));
+                        assertEquals(TIMESTAMP, outputSchema.getColumnType(2));
+
+                        List<Object[]> records = filterRecords(taskSource, outputSchema,
+                                                               "{\"user\":{\"id\":\"42\"},\"event\":{\"ts\":\"2015-10-28T02:40:00Z\"},\"tags\":[\"a\",\"b\"]}",
+                                                               "{\"event\":{\"ts\":1446000000}}",
+                                                               null);
+                        assertEquals(3, records.size());
+                        assertEquals("{\"event\":{\"ts\":\"2015-10-28T02:40:00Z\"},\"tags\":[\"a\",\"b\"]}", records.get(0)[0]);
+                        assertEquals(42L, records.get(0)[1]);
+                        assertEquals(Timestamp.ofEpochSecond(1446000000L), records.get(0)[2]);
+                        assertEquals("b", records.get(0)[3]);
+                        assertEquals(null, records.get(1)[1]);
+                        assertEquals(Timestamp.ofEpochSecond(1446000000L), records.get(1)[2]);
+                        assertEquals(null, records.get(1)[3]);
+                        for (Object value : records.get(2)) {
+                            assertEquals(null, value);
+                        }
+                    }
+                });
+            }
+        }
+    }
+
+    @Test
+    public void testDoFilterLimits()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "**.x")));
+            config.set("max_depth", 2);
+            config.set("limit_policy", "null");
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"a\":{\"b\":1}}", jsonKeyFilter.doFilter("{\"a\":{\"b\":1,\"x\":2}}"));
+            assertEquals(null, jsonKeyFilter.doFilter("{\"a\":{\"b\":{\"x\":1}}}"));
+            assertEquals(null, jsonKeyFilter.doFilterAsValue("[[[1]]]"));
+            assertEquals(2, jsonKeyFilter.getMetrics().overDepthLimit);
+
+            config.set("max_depth", 0);
+            config.set("max_document_chars", 10);
+            config.set("limit_policy", "pass_through");
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            String large = "{\"x\":\"0123456789\"}";
+            assertSame(large, jsonKeyFilter.doFilter(large));
+            assertEquals("{}", jsonKeyFilter.doFilter("{\"x\":1}"));
+            assertEquals(1, jsonKeyFilter.getMetrics().overCharsLimit);
+
+            config.set("max_document_chars", 0);
+            config.set("max_nodes", 3);
+            config.set("limit_policy", "fail");
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("[\"x\",2]", jsonKeyFilter.doFilter("[\"x\",2]"));
+            try {
+                jsonKeyFilter.doFilter("[\"x\",2,3]");
+                fail();
+            }
+            catch (DocumentLimitException e) {
+                assertEquals(DocumentLimitException.Limit.NODES, e.getLimit());
+            }
+            // the filter can be used again after a failure.
+            assertEquals("[\"x\"]", jsonKeyFilter.doFilter("[\"x\"]"));
+        }
+    }
+
+    @Test
+    public void testDoFilterBatch()
+    {
+        ConfigSource config = getDefaultConfigSource();
+        config.set("batch", true);
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "secret")));
+        config.set("extract_columns", ImmutableList.of(ImmutableMap.of("path", "id", "name", "id", "type", "long")));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                Object[] baseData = new Object[2000];
+                for (int i = 0; i < baseData.length; i++) {
+                    baseData[i] = i % 100 == 0 ? null : String.format("{\"id\":%d,\"secret\":\"s\"}", i);
+                }
+                List<Object[]> records = filterRecords(taskSource, outputSchema, baseData);
+                assertEquals(baseData.length, records.size());
+                for (int i = 0; i < baseData.length; i++) {
+                    if (i % 100 == 0) {
+                        assertEquals(null, records.get(i)[0]);
+                        assertEquals(null, records.get(i)[1]);
+                    }
+                    else {
+                        assertEquals(String.format("{\"id\":%d}", i), records.get(i)[0]);
+                        assertEquals((long) i, records.get(i)[1]);
+                    }
+                }
+            }
+        });
+    }
+
+    @Test
+    public void testDoFilterOutputFormat()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            for (JsonFactory factory : ImmutableList.of(new SmileFactory(), new CBORFactory())) {
+                ConfigSource config = getDefaultConfigSource();
+                config.set("engine", engine);
+                config.set("output_format", factory instanceof SmileFactory ? "smile" : "cbor");
+                config.set("add_keys", ImmutableList.of(ImmutableMap.of("key", "a.c", "value", ImmutableList.of(1, "x"))));
+                config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "b")));
+
+                PluginTask task = config.loadConfig(PluginTask.class);
+                JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+                ObjectMapper mapper = new ObjectMapper(factory);
+                String output = jsonKeyFilter.doFilter("{\"a\":{\"b\":1},\"b\":2}");
+                assertEquals("{\"a\":{\"b\":1,\"c\":[1,\"x\"]}}", mapper.readTree(BaseEncoding.base64().decode(output)).toString());
+
+                Value json = ValueFactory.newMap(ValueFactory.newString("b"), ValueFactory.newInteger(1),
+                                                 ValueFactory.newString("d"), ValueFactory.newFloat(1.5));
+                output = jsonKeyFilter.doFilterAsString(json);
+                assertEquals("{\"d\":1.5}", mapper.readTree(BaseEncoding.base64().decode(output)).toString());
+            }
+        }
+    }
+
+    @Test
+    public void testDoFilterExplodePath()
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("explode_path", "data.events");
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "secret")));
+            config.set("extract_columns", ImmutableList.of(ImmutableMap.of("path", "id", "name", "id", "type", "long")));
+
+            filter.transaction(config, schema, new Control()
+            {
+                @Override
+                public void run(TaskSource taskSource, Schema outputSchema)
+                {
+                    List<Object[]> records = filterRecords(taskSource, outputSchema,
+                                                           "{\"meta\":{\"events\":[0]},\"data\":{\"events\":[{\"id\":1,\"secret\":\"s\"},{\"id\":2},3]}}",
+                                                           "{\"data\":{\"events\":[]}}",
+                                                           "{\"data\":{}}",
+                                                           null);
+                    assertEquals(5, records.size());
+                    assertEquals("{\"id\":1}", records.get(0)[0]);
+                    assertEquals(1L, records.get(0)[1]);
+                    assertEquals("{\"id\":2}", records.get(1)[0]);
+                    assertEquals(2L, records.get(1)[1]);
+                    assertEquals("3", records.get(2)[0]);
+                    assertEquals(null, records.get(2)[1]);
+                    for (int i = 3; i < 5; i++) {
+                        assertEquals(null, records.get(i)[0]);
+                        assertEquals(null, records.get(i)[1]);
+                    }
+                }
+            });
+        }
+    }
+
+    @Test
+    public void testDoFilterWhen()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(
+                    ImmutableMap.of("key", "payload.body", "when", ImmutableMap.of("path", "type", "equals", "upload")),
+                    ImmutableMap.of("key", "debug", "when", ImmutableMap.of("path", "meta.env", "in", ImmutableList.of("prod", "stage")))));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"type\":\"upload\",\"payload\":{\"size\":1}}",
+                         jsonKeyFilter.doFilter("{\"type\":\"upload\",\"payload\":{\"body\":\"x\",\"size\":1}}"));
+            assertEquals("{\"payload\":{\"size\":1},\"type\":\"upload\"}",
+                         jsonKeyFilter.doFilter("{\"payload\":{\"body\":\"x\",\"size\":1},\"type\":\"upload\"}"));
+            assertEquals("{\"type\":\"view\",\"payload\":{\"body\":\"x\"}}",
+                         jsonKeyFilter.doFilter("{\"type\":\"view\",\"payload\":{\"body\":\"x\"}}"));
+            assertEquals("{\"payload\":{\"body\":\"x\"},\"debug\":1}",
+                         jsonKeyFilter.doFilter("{\"payload\":{\"body\":\"x\"},\"debug\":1}"));
+            assertEquals("{\"meta\":{\"env\":\"stage\"},\"payload\":{\"body\":\"x\"}}",
+                         jsonKeyFilter.doFilter("{\"meta\":{\"env\":\"stage\"},\"debug\":1,\"payload\":{\"body\":\"x\"}}"));
+
+            Value json = ValueFactory.newMap(ValueFactory.newString("type"), ValueFactory.newString("upload"),
+                                             ValueFactory.newString("payload"),
+                                             ValueFactory.newMap(ValueFactory.newString("body"), ValueFactory.newString("x")));
+            assertEquals("{\"type\":\"upload\",\"payload\":{}}", jsonKeyFilter.doFilter(json).toJson());
+        }
+    }
+
+    @Test
+    public void testDoFilterRenameKeys()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("key_case", "snake_case");
+            config.set("rename_keys", ImmutableList.of(ImmutableMap.of("from", "profile.address.zipCode", "to", "zip"),
+                                                       ImmutableMap.of("from", "userId", "to", "id")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"profile\":{\"first_name\":\"a\",\"address\":{\"line_one\":\"l\"}},\"zip\":\"z\",\"id\":1}",
+                         jsonKeyFilter.doFilter("{\"userId\":1,\"profile\":{\"firstName\":\"a\",\"address\":{\"zipCode\":\"z\",\"lineOne\":\"l\"}}}"));
+            assertEquals("{\"profile\":{\"address\":{}},\"zip\":\"z\"}",
+                         jsonKeyFilter.doFilter("{\"zip\":\"old\",\"profile\":{\"address\":{\"zipCode\":\"z\"}}}"));
+            assertEquals("{\"profile\":{},\"zip\":\"old\"}", jsonKeyFilter.doFilter("{\"profile\":{},\"zip\":\"old\"}"));
+            // a value at the new key stays at its place unless a moved value replaces it.
+            assertEquals("{\"zip\":\"old\",\"a\":1}", jsonKeyFilter.doFilter("{\"zip\":\"old\",\"a\":1}"));
+            assertEquals("{\"id\":0,\"zip\":\"old\",\"last_name\":\"b\"}",
+                         jsonKeyFilter.doFilter("{\"id\":0,\"zip\":\"old\",\"lastName\":\"b\"}"));
+            assertEquals("{\"a\":1,\"profile\":{\"address\":{}},\"zip\":\"z\"}",
+                         jsonKeyFilter.doFilter("{\"zip\":\"old\",\"a\":1,\"profile\":{\"address\":{\"zipCode\":\"z\"}}}"));
+            assertEquals("{\"http_request\":{\"status_code\":200}}", jsonKeyFilter.doFilter("{\"HTTPRequest\":{\"statusCode\":200}}"));
+
+            Value json = ValueFactory.newMap(ValueFactory.newString("userId"), ValueFactory.newInteger(1),
+                                             ValueFactory.newString("isNew"), ValueFactory.newBoolean(true));
+            assertEquals("{\"is_new\":true,\"id\":1}", jsonKeyFilter.doFilter(json).toJson());
+
+            // moved into an object which does not enclose the old key, so the streaming engine falls back to the tree.
+            config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("rename_keys", ImmutableList.of(ImmutableMap.of("from", "old", "to", "profile.legacy")));
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"profile\":{\"a\":1,\"legacy\":2}}", jsonKeyFilter.doFilter("{\"old\":2,\"profile\":{\"a\":1}}"));
+            assertEquals("{\"profile\":{\"a\":1}}", jsonKeyFilter.doFilter("{\"profile\":{\"a\":1}}"));
+        }
+    }
+
+    @Test
+    public void testDoFilterProfile()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("profile", true);
+            config.set("profile_top_n", 3);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "big")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            // dropped keys are profiled too, as they are in the input.
+            String input = "{\"a\":1,\"big\":\"xxxxxxxxxxxxxxxxxxxx\",\"arr\":[{\"b\":1},{\"b\":2}]}";
+            assertEquals("{\"a\":1,\"arr\":[{\"b\":1},{\"b\":2}]}", jsonKeyFilter.doFilter(input));
+            jsonKeyFilter.doFilter(input);
+
+            List<KeyProfile.Entry> byCount = jsonKeyFilter.getProfile().getTopByCount();
+            assertEquals(3, byCount.size());
+            assertEquals("arr.*", byCount.get(0).getPath());
+            assertEquals(4, byCount.get(0).getCount());
+            assertEquals("arr.*.b", byCount.get(1).getPath());
+            assertEquals(2, byCount.get(2).getCount());
+            assertEquals("big", jsonKeyFilter.getProfile().getTopByChars().get(0).getPath());
+
+            // profiles of json columns are merged with those of string columns.
+            KeyProfile merged = new KeyProfile(3);
+            merged.addPaths(ValueFactory.newMap(ValueFactory.newString("a"), ValueFactory.newInteger(1)), ".");
+            merged.merge(jsonKeyFilter.getProfile());
+            assertEquals("a", merged.getTopByCount().get(2).getPath());
+            assertEquals(3, merged.getTopByCount().get(2).getCount());
+        }
+    }
+
+    /*
+    Case:
+        the other filtered columns of an exploded record are filtered once, not once for each element.
+     */
+    @Test
+    public void testDoFilterExplodePathWithOtherColumns()
+    {
+        final Schema schema = Schema.builder()
+                .add("_c0", STRING)
+                .add("_c1", STRING)
+                .build();
+
+        ConfigSource config = getDefaultConfigSource();
+        config.set("explode_path", "items");
+        config.set("columns", ImmutableList.of(
+                ImmutableMap.of("name", "_c1",
+                                "drop_keys", ImmutableList.of(ImmutableMap.of("key", "x")))));
+
+        filter.transaction(config, schema, new Control()
+        {
+            @Override
+            public void run(TaskSource taskSource, Schema outputSchema)
+            {
+                MockPageOutput mockPageOutput = new MockPageOutput();
+                PageOutput pageOutput = filter.open(taskSource, schema, outputSchema, mockPageOutput);
+                for (Page page : PageTestUtils.buildPage(runtime.getBufferAllocator(), schema,
+                                                         "{\"items\":[1,2,3]}", "{\"x\":1,\"y\":2}",
+                                                         "{\"items\":[4]}", "{\"x\":1}")) {
+                    pageOutput.add(page);
+                }
+                pageOutput.finish();
+                pageOutput.close();
+
+                List<Object[]> records = Pages.toObjects(outputSchema, mockPageOutput.pages);
+                assertEquals(4, records.size());
+                for (int i = 0; i < 3; i++) {
+                    assertEquals(String.valueOf(i + 1), records.get(i)[0]);
+                    assertEquals("{\"y\":2}", records.get(i)[1]);
+                }
+                assertEquals("4", records.get(3)[0]);
+                assertEquals("{}", records.get(3)[1]);
+
+                // one value of each column for each input record.
+                FilterMetrics metrics = FilterMetrics.endTransaction(taskSource.loadTask(PluginTask.class).getTransactionId().get());
+                assertEquals(4, metrics.values);
+                assertEquals(2, metrics.droppedKeys);
+            }
+        });
+    }
+
+    @Test
+    public void testDoFilterExplodePathOverLimit()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            for (String limitPolicy : ImmutableList.of("pass_through", "null")) {
+                ConfigSource config = getDefaultConfigSource();
+                config.set("engine", engine);
+                config.set("explode_path", "items");
+                config.set("max_depth", 2);
+                config.set("limit_policy", limitPolicy);
+
+                PluginTask task = config.loadConfig(PluginTask.class);
+                JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+                final List<Object> outputs = new ArrayList<>();
+                JsonKeyFilter.ExplodedOutput output = new JsonKeyFilter.ExplodedOutput()
+                {
+                    @Override
+                    public void add(Object filtered)
+                    {
+                        outputs.add(filtered);
+                    }
+                };
+                String json = "{\"items\":[{\"a\":{\"b\":1}}]}";
+                jsonKeyFilter.doExplode(json, STRING, output);
+                assertEquals(1, outputs.size());
+                assertEquals(limitPolicy.equals("pass_through") ? json : null, outputs.get(0));
+                assertEquals(1, jsonKeyFilter.getMetrics().overDepthLimit);
+            }
+        }
+    }
+
+    /*
+    Case:
+        array indexes of drop_keys are positions in the input array, not in the array shifted by earlier drops.
+     */
+    @Test
+    public void testDoFilterDropArrayIndexesByInputPosition()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "a.0"), ImmutableMap.of("key", "a.1")));
+
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"a\":[3]}", jsonKeyFilter.doFilter("{\"a\":[1,2,3]}"));
+
+            Value json = ValueFactory.newMap(ValueFactory.newString("a"),
+                                             ValueFactory.newArray(ValueFactory.newInteger(1), ValueFactory.newInteger(2), ValueFactory.newInteger(3)));
+            assertEquals("{\"a\":[3]}", jsonKeyFilter.doFilter(json).toJson());
+        }
+    }
+
+    /*
+    Case:
+        records with more combinations of when than matchers are cached are still filtered by their own rules.
+     */
+    @Test
+    public void testDoFilterWhenManyCombinations()
+            throws IOException
+    {
+        ImmutableList.Builder<Object> dropKeys = ImmutableList.builder();
+        for (int i = 0; i < 6; i++) {
+            dropKeys.add(ImmutableMap.of("key", "k" + i, "when", ImmutableMap.of("path", "f" + i, "exists", true)));
+        }
+        ConfigSource config = getDefaultConfigSource();
+        config.set("drop_keys", dropKeys.build());
+        PluginTask task = config.loadConfig(PluginTask.class);
+        ConditionalMatcher matcher = new ConditionalMatcher(task, task.getNestedKeyDelimiter(), new ObjectMapper());
+
+        // 64 combinations, twice.
+        for (int round = 0; round < 2; round++) {
+            for (int holds = 0; holds < 64; holds++) {
+                ImmutableMap.Builder<String, Object> record = ImmutableMap.builder();
+                for (int i = 0; i < 6; i++) {
+                    record.put("k" + i, i);
+                    if ((holds & (1 << i)) != 0) {
+                        record.put("f" + i, true);
+                    }
+                }
+                JsonNode root = new ObjectMapper().valueToTree(record.build());
+                KeyPathMatcher selected = matcher.select(root);
+                for (int i = 0; i < 6; i++) {
+                    KeyPathMatcher.State child = selected.getRoot().getChild("k" + i);
+                    assertEquals((holds & (1 << i)) != 0, child != null && child.isDropped());
+                }
+            }
+        }
+        assertTrue(matcher.getCachedMatchers() <= 16);
+    }
+
+    /*
+    Case:
+        with pass_through_unmatched, a record without a dropped key name is passed through only with drop_keys alone,
+        even if it is malformed. other rules, limits and key_case still apply to it.
+        without it, a malformed record fails.
+     */
+    @Test
+    public void testDoFilterPassThroughOnlyWithDropKeys()
+            throws IOException
+    {
+        for (String engine : ImmutableList.of("tree", "streaming")) {
+            ConfigSource config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "secret")));
+            PluginTask task = config.loadConfig(PluginTask.class);
+            JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+            String malformed = "{\"a\":[1,";
+            try {
+                jsonKeyFilter.doFilter(malformed);
+                fail("malformed json must not be passed through by default");
+            }
+            catch (IOException e) {
+                // expected
+            }
+
+            config.set("pass_through_unmatched", true);
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertSame(malformed, jsonKeyFilter.doFilter(malformed));
+
+            config.set("max_depth", 1);
+            config.set("limit_policy", "null");
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals(null, jsonKeyFilter.doFilter("{\"a\":{\"b\":1}}"));
+            assertEquals(1, jsonKeyFilter.getMetrics().overDepthLimit);
+
+            config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "secret")));
+            config.set("pass_through_unmatched", true);
+            config.set("key_case", "snake_case");
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"user_id\":1}", jsonKeyFilter.doFilter("{\"userId\":1}"));
+
+            config = getDefaultConfigSource();
+            config.set("engine", engine);
+            config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "secret")));
+            config.set("pass_through_unmatched", true);
+            config.set("rename_keys", ImmutableList.of(ImmutableMap.of("from", "old", "to", "new")));
+            task = config.loadConfig(PluginTask.class);
+            jsonKeyFilter = new JsonKeyFilter(task, task);
+            assertEquals("{\"new\":1}", jsonKeyFilter.doFilter("{\"old\":1}"));
+            try {
+                jsonKeyFilter.doFilter(malformed);
+                fail("malformed json must not be passed through with rename_keys");
+            }
+            catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    /*
+    Case:
+        chars are counted for JSON text of string columns, whichever way it is read or written.
+     */
+    @Test
+    public void testDoFilterMetricsOutputChars()
+            throws IOException
+    {
+        ConfigSource config = getDefaultConfigSource();
+        config.set("drop_keys", ImmutableList.of(ImmutableMap.of("key", "c1")));
+        PluginTask task = config.loadConfig(PluginTask.class);
+        JsonKeyFilter jsonKeyFilter = new JsonKeyFilter(task, task);
+
+        Value json = ValueFactory.newMap(ValueFactory.newString("c1"), ValueFactory.newInteger(1),
+                                         ValueFactory.newString("c2"), ValueFactory.newInteger(2));
+        assertEquals("{\"c2\":2}", jsonKeyFilter.doFilterAsString(json));
+        assertEquals(0, jsonKeyFilter.getMetrics().inputChars);
+        assertEquals(8, jsonKeyFilter.getMetrics().outputChars);
+
+        // a msgpack value written into a json column is not measured.
+        jsonKeyFilter.doFilterAsValue("{\"c1\":1,\"c2\":2}");
+        assertEquals(15, jsonKeyFilter.getMetrics().inputChars);
+        assertEquals(8, jsonKeyFilter.getMetrics().outputChars);
+    }
 }